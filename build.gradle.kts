@@ -49,6 +49,7 @@ dependencies {
     implementation("io.prometheus:simpleclient:0.12.0")
     implementation("io.prometheus:simpleclient_httpserver:0.12.0")
     implementation("io.prometheus:simpleclient_hotspot:0.12.0")
+    implementation("org.hdrhistogram:HdrHistogram:2.1.12")
 
     implementation(files("libs/lucene-core-10.0.0-SNAPSHOT.jar"))
     implementation(files("libs/jvector-1.0.3-SNAPSHOT.jar"))
@@ -20,6 +20,15 @@ public class BenchRunner implements Runnable {
   @Option(names = {"-q", "--query"})
   private boolean query;
 
+  @Option(names = {"-w", "--workload"})
+  private boolean workload;
+
+  @Option(names = {"-s", "--segments"})
+  private boolean segments;
+
+  @Option(names = {"-n", "--nrt"})
+  private boolean nrt;
+
   @Option(names = {"-c", "--config"})
   private String config;
 
@@ -46,8 +55,14 @@ public class BenchRunner implements Runnable {
   }
 
   private void throwableRun() throws Exception {
-    Preconditions.checkArgument(!(this.build && this.query), "cannot build and query");
-    Preconditions.checkArgument(this.build || this.query, "must build or query");
+    Preconditions.checkArgument(
+        (this.build ? 1 : 0)
+                + (this.query ? 1 : 0)
+                + (this.workload ? 1 : 0)
+                + (this.segments ? 1 : 0)
+                + (this.nrt ? 1 : 0)
+            == 1,
+        "must build, query, run a workload, sweep segments, or search near-real-time");
 
     var workingDirectory = Path.of(System.getProperty("user.dir"));
     var datasetPath = workingDirectory.resolve("datasets");
@@ -61,5 +76,17 @@ public class BenchRunner implements Runnable {
     if (this.query) {
       QueryBench.test(QuerySpec.load(Path.of(this.config)), datasetPath, indexesPath, reportsPath);
     }
+
+    if (this.workload) {
+      WorkloadBench.run(QuerySpec.load(Path.of(this.config)), datasetPath, reportsPath);
+    }
+
+    if (this.segments) {
+      SegmentBench.run(QuerySpec.load(Path.of(this.config)), datasetPath, indexesPath, reportsPath);
+    }
+
+    if (this.nrt) {
+      NrtBench.run(QuerySpec.load(Path.of(this.config)), datasetPath, indexesPath, reportsPath);
+    }
   }
 }
@@ -3,6 +3,7 @@ package com.github.kevindrosendahl.javaannbench;
 import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
 import com.github.kevindrosendahl.javaannbench.index.Index;
 import com.github.kevindrosendahl.javaannbench.index.Index.Builder.BuildPhase;
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.Merge;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -59,8 +60,25 @@ public class BuildBench {
           .forEach(phase -> LOGGER.info("\t{} phase: {}", phase.description(), phase.duration()));
       LOGGER.info("\ttotal time: {}", totalTime);
       LOGGER.info("\tsize: {}", index.size());
+      if (!summary.merges().isEmpty()) {
+        LOGGER.info("\tmerges: {}", summary.merges().size());
+        LOGGER.info(
+            "\tmerge time: {}",
+            summary.merges().stream().map(Merge::duration).reduce(Duration.ZERO, Duration::plus));
+        LOGGER.info(
+            "\tvector merge time: {}",
+            summary.merges().stream()
+                .map(Merge::vectorsDuration)
+                .reduce(Duration.ZERO, Duration::plus));
+      }
 
-      new Report(index.description(), spec, totalTime, summary.phases(), index.size())
+      new Report(
+              index.description(),
+              spec,
+              totalTime,
+              summary.phases(),
+              summary.merges(),
+              index.size())
           .write(reportsPath);
     } finally {
       if (jfr) {
@@ -76,6 +94,7 @@ public class BuildBench {
       BuildSpec spec,
       Duration total,
       List<BuildPhase> phases,
+      List<Merge> merges,
       Bytes size) {
 
     void write(Path reportsPath) throws Exception {
@@ -103,6 +122,28 @@ public class BuildBench {
         printer.printRecord((Object[]) data);
         printer.flush();
       }
+
+      if (merges.isEmpty()) {
+        return;
+      }
+
+      // Also write each merge's cost, a row per merge in the order they finished.
+      var mergesPath = path.resolveSibling(path.getFileName() + ".merges");
+      try (var writer = Files.newBufferedWriter(mergesPath);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var merge : merges) {
+          printer.printRecord(
+              merge.segments(),
+              merge.documents(),
+              merge.inputSize().toBytes(),
+              merge.outputSize().toBytes(),
+              merge.duration().toNanos(),
+              merge.vectorsDuration().toNanos());
+        }
+        printer.flush();
+      }
+
+      LOGGER.info("wrote merges to {}", mergesPath);
     }
   }
 }
@@ -0,0 +1,344 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.LuceneIndex;
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.LatencyRecorder;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NrtBench measures near-real-time search: a lucene index queried while documents are still being
+ * added to it, the way an index serving live traffic is, rather than built and then queried.
+ *
+ * <p>The index is loaded with a fraction of the train vectors and refreshed. Then writer threads
+ * add the rest, the searcher is refreshed on an interval, and query threads run test queries
+ * against whatever was last refreshed until the writers finish. Unless disabled, the same is first
+ * done without any queries, so that the indexing throughput lost to concurrent search can be
+ * reported.
+ */
+public class NrtBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NrtBench.class);
+
+  private static final double DEFAULT_INITIAL_FRACTION = 0.1;
+  private static final long DEFAULT_REFRESH_MILLIS = 1000;
+  // Train vectors each writer thread adds per task.
+  private static final int WRITE_CHUNK = 1024;
+  private static final double[] REPORTED_PERCENTILES = new double[] {50, 90, 99, 99.9, 99.99};
+
+  public static void run(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
+      throws Exception {
+    Preconditions.checkArgument(
+        spec.provider().equals("lucene"), "only lucene supports near-real-time search");
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var writerThreads = writerThreads(spec.runtime());
+    var queryThreads = queryThreads(spec.runtime());
+    Preconditions.checkArgument(queryThreads > 0, "queryThreads must be positive");
+    var refreshInterval = refreshInterval(spec.runtime());
+    var size = dataset.train().size();
+    var initial = (int) (size * initialFraction(spec.runtime()));
+    Preconditions.checkArgument(
+        initial > 0 && initial < size,
+        "initialFraction must load some but not all of the vectors before searching");
+
+    var datasetIndexesPath = indexesPath.resolve(dataset.name());
+    Files.createDirectories(datasetIndexesPath);
+    var parameters =
+        new Index.Querier.Parameters(spec.provider(), spec.type(), spec.build(), spec.query());
+    var queries =
+        IntStream.range(0, dataset.test().size()).mapToObj(dataset.test()::vectorValue).toList();
+
+    Optional<Pass> baseline = Optional.empty();
+    if (baseline(spec.runtime())) {
+      baseline =
+          Optional.of(
+              pass(
+                  dataset,
+                  datasetIndexesPath,
+                  parameters,
+                  queries,
+                  spec.k(),
+                  initial,
+                  writerThreads,
+                  0,
+                  refreshInterval));
+    }
+    var concurrent =
+        pass(
+            dataset,
+            datasetIndexesPath,
+            parameters,
+            queries,
+            spec.k(),
+            initial,
+            writerThreads,
+            queryThreads,
+            refreshInterval);
+
+    LOGGER.info("completed near-real-time search for {}:", concurrent.description);
+    LOGGER.info(
+        "\tindexing {} documents/s while searching{}",
+        concurrent.documentsPerSecond(),
+        baseline
+            .map(
+                pass ->
+                    String.format(
+                        ", %s without, %s%% lost to search",
+                        pass.documentsPerSecond(), 100 * throughputLoss(pass, concurrent)))
+            .orElse(""));
+    LOGGER.info("\tqueries {} ({} per second)", concurrent.queries, concurrent.queriesPerSecond());
+    LOGGER.info(
+        "\trefreshes {}, {} segments searchable at the end",
+        concurrent.refreshLatencies.getTotalCount(),
+        concurrent.segments);
+    for (var percentile : REPORTED_PERCENTILES) {
+      LOGGER.info(
+          "\tp{} query latency {}, refresh latency {}",
+          percentile,
+          Duration.ofNanos(concurrent.queryLatencies.getValueAtPercentile(percentile)),
+          Duration.ofNanos(concurrent.refreshLatencies.getValueAtPercentile(percentile)));
+    }
+
+    new Report(spec, baseline, concurrent).write(reportsPath);
+  }
+
+  /**
+   * Builds a fresh index, loading the initial vectors and then adding the rest while refreshing,
+   * and while queryThreads threads query it if positive.
+   */
+  private static Pass pass(
+      Dataset dataset,
+      Path indexesPath,
+      Index.Querier.Parameters parameters,
+      List<float[]> queries,
+      int k,
+      int initial,
+      int writerThreads,
+      int queryThreads,
+      Duration refreshInterval)
+      throws Exception {
+    var size = dataset.train().size();
+    try (var index =
+            LuceneIndex.NearRealTime.create(
+                indexesPath, dataset.train(), dataset.similarityFunction(), parameters);
+        var writers = new ForkJoinPool(writerThreads);
+        var refresher = Executors.newSingleThreadScheduledExecutor();
+        var searchers = Executors.newFixedThreadPool(Math.max(1, queryThreads))) {
+      add(index, writers, 0, initial, "loading");
+      index.refresh();
+
+      // Only the refresher thread records refreshes, until it has been shut down.
+      var refreshLatencies = new Histogram(3);
+      var refreshes =
+          refresher.scheduleWithFixedDelay(
+              () -> {
+                var start = System.nanoTime();
+                Exceptions.wrap(index::refresh);
+                refreshLatencies.recordValue(System.nanoTime() - start);
+              },
+              refreshInterval.toNanos(),
+              refreshInterval.toNanos(),
+              TimeUnit.NANOSECONDS);
+
+      var done = new AtomicBoolean();
+      var queryLatencies = new LatencyRecorder();
+      var queryCount = new AtomicLong();
+      var queriers = new ArrayList<Future<?>>();
+      for (int i = 0; i < queryThreads; i++) {
+        queriers.add(
+            searchers.submit(
+                () -> {
+                  var results = new QueryResults(k);
+                  var random = ThreadLocalRandom.current();
+                  while (!done.get()) {
+                    var vector = queries.get(random.nextInt(queries.size()));
+                    var start = System.nanoTime();
+                    Exceptions.wrap(() -> index.query(vector, k, results));
+                    queryLatencies.record(System.nanoTime() - start);
+                    queryCount.incrementAndGet();
+                  }
+                }));
+      }
+
+      var start = Instant.now();
+      try {
+        add(
+            index,
+            writers,
+            initial,
+            size,
+            queryThreads == 0 ? "indexing" : "indexing and searching");
+      } finally {
+        done.set(true);
+      }
+      var duration = Duration.between(start, Instant.now());
+
+      // Surface any failed query or refresh, rather than waiting on them forever.
+      for (var querier : queriers) {
+        querier.get();
+      }
+      if (refreshes.isDone()) {
+        refreshes.get();
+      }
+      refresher.shutdown();
+      refresher.awaitTermination(1, TimeUnit.MINUTES);
+
+      var pass =
+          new Pass(
+              index.description(),
+              size - initial,
+              duration,
+              queryCount.get(),
+              queryLatencies.merged(),
+              refreshLatencies,
+              index.segments());
+      LOGGER.info(
+          "indexed {} documents/s with {} query threads, {} refreshes",
+          pass.documentsPerSecond(),
+          queryThreads,
+          refreshLatencies.getTotalCount());
+      return pass;
+    }
+  }
+
+  /** Adds the train vectors with ids in [first, last) across the pool's threads. */
+  private static void add(
+      LuceneIndex.NearRealTime index, ForkJoinPool pool, int first, int last, String description) {
+    var chunks = (last - first + WRITE_CHUNK - 1) / WRITE_CHUNK;
+    try (var progress = ProgressBar.create(description, last - first)) {
+      pool.submit(
+              () ->
+                  IntStream.range(0, chunks)
+                      .parallel()
+                      .forEach(
+                          c -> {
+                            var start = first + c * WRITE_CHUNK;
+                            var end = Math.min(last, start + WRITE_CHUNK);
+                            Exceptions.wrap(() -> index.add(start, end));
+                            progress.inc(end - start);
+                          }))
+          .join();
+    }
+  }
+
+  /**
+   * Returns the fraction of the baseline's indexing throughput lost when searching concurrently.
+   */
+  private static double throughputLoss(Pass baseline, Pass concurrent) {
+    return 1 - concurrent.documentsPerSecond() / baseline.documentsPerSecond();
+  }
+
+  private record Pass(
+      String description,
+      long documents,
+      Duration duration,
+      long queries,
+      Histogram queryLatencies,
+      Histogram refreshLatencies,
+      int segments) {
+
+    double documentsPerSecond() {
+      return this.documents / (this.duration.toNanos() / 1e9);
+    }
+
+    double queriesPerSecond() {
+      return this.queries / (this.duration.toNanos() / 1e9);
+    }
+  }
+
+  private record Report(QuerySpec spec, Optional<Pass> baseline, Pass concurrent) {
+
+    void write(Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var path =
+          reportsPath.resolve(
+              String.format("%s-nrt-%s-%s", now, spec.dataset(), concurrent.description));
+      var data = new ArrayList<String>();
+      data.add("v1");
+      data.add(concurrent.description);
+      data.add(spec.dataset());
+      data.add(spec.provider());
+      data.add(spec.type());
+      data.add(spec.buildString());
+      data.add(spec.queryString());
+      data.add(spec.runtimeString());
+      data.add(Long.toString(concurrent.documents));
+      data.add(Long.toString(concurrent.duration.toNanos()));
+      data.add(Double.toString(concurrent.documentsPerSecond()));
+      data.add(baseline.map(pass -> Double.toString(pass.documentsPerSecond())).orElse(""));
+      data.add(baseline.map(pass -> Double.toString(throughputLoss(pass, concurrent))).orElse(""));
+      data.add(Long.toString(concurrent.queries));
+      data.add(Double.toString(concurrent.queriesPerSecond()));
+      data.add(Long.toString((long) concurrent.queryLatencies.getMean()));
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(concurrent.queryLatencies.getValueAtPercentile(percentile)));
+      }
+      data.add(Long.toString(concurrent.refreshLatencies.getTotalCount()));
+      data.add(Long.toString((long) concurrent.refreshLatencies.getMean()));
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(concurrent.refreshLatencies.getValueAtPercentile(percentile)));
+      }
+      data.add(Integer.toString(concurrent.segments));
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        printer.printRecord(data);
+        printer.flush();
+      }
+
+      LOGGER.info("wrote report to {}", path);
+    }
+  }
+
+  private static int writerThreads(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("writerThreads")).map(Integer::parseInt).orElse(1);
+  }
+
+  private static int queryThreads(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("queryThreads")).map(Integer::parseInt).orElse(1);
+  }
+
+  private static Duration refreshInterval(Map<String, String> runtime) {
+    var millis =
+        Optional.ofNullable(runtime.get("refreshMillis"))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_REFRESH_MILLIS);
+    Preconditions.checkArgument(millis > 0, "refreshMillis must be positive");
+    return Duration.ofMillis(millis);
+  }
+
+  private static double initialFraction(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("initialFraction"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_INITIAL_FRACTION);
+  }
+
+  private static boolean baseline(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("baseline")).map(Boolean::parseBoolean).orElse(true);
+  }
+}
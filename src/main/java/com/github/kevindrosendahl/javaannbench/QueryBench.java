@@ -1,16 +1,25 @@
 package com.github.kevindrosendahl.javaannbench;
 
+import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
 import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.dataset.FilteredGroundTruth;
 import com.github.kevindrosendahl.javaannbench.display.Progress;
 import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.AttributeFilter;
 import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
 import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.LatencyRecorder;
+import com.github.kevindrosendahl.javaannbench.util.LatencyTimeSeries;
+import com.github.kevindrosendahl.javaannbench.util.PerThread;
 import com.google.common.base.Preconditions;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.hotspot.DefaultExports;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
@@ -18,6 +27,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,12 +36,18 @@ import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.IntStream;
 import jdk.jfr.Configuration;
 import jdk.jfr.Recording;
+import org.HdrHistogram.Histogram;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
@@ -49,30 +65,90 @@ public class QueryBench {
   private static final int DEFAULT_WARMUP_ITERATIONS = 1;
   private static final int DEFAULT_TEST_ITERATIONS = 2;
   private static final int DEFAULT_BLOCK_DEVICE_STATS_INTERVAL_MS = 10;
+  private static final int DEFAULT_QUERY_LOG_CAPACITY = 1 << 16;
+  private static final long UNSCHEDULED = Long.MIN_VALUE;
+  private static final double[] REPORTED_PERCENTILES = new double[] {50, 90, 99, 99.9, 99.99};
 
   public static void test(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
       throws Exception {
     var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var sweep = querySweep(spec);
+    if (sweep.size() > 1) {
+      LOGGER.info("sweeping {} query parameter combinations", sweep.size());
+    }
+
+    for (var querySpec : sweep) {
+      test(querySpec, dataset, indexesPath, reportsPath);
+    }
+  }
+
+  /**
+   * Expands query parameters given as comma separated lists (e.g. numCandidates: 50,100,200) into a
+   * spec per combination of their values, so that a single run can sweep them with a querier opened
+   * for each. The sandbox vamana reader's parameters come from the environment and can't be swept.
+   */
+  private static List<QuerySpec> querySweep(QuerySpec spec) {
+    List<Map<String, String>> combinations = List.of(Map.of());
+    for (var parameter : spec.query().entrySet()) {
+      var values = Arrays.stream(parameter.getValue().split(",")).map(String::trim).toList();
+      var expanded = new ArrayList<Map<String, String>>();
+      for (var combination : combinations) {
+        for (var value : values) {
+          var next = new HashMap<>(combination);
+          next.put(parameter.getKey(), value);
+          expanded.add(next);
+        }
+      }
+      combinations = expanded;
+    }
+
+    return combinations.stream()
+        .map(
+            query ->
+                new QuerySpec(
+                    spec.dataset(),
+                    spec.provider(),
+                    spec.type(),
+                    spec.build(),
+                    query,
+                    spec.k(),
+                    spec.runtime()))
+        .toList();
+  }
+
+  private static void test(QuerySpec spec, Dataset dataset, Path indexesPath, Path reportsPath)
+      throws Exception {
     try (var index =
         Index.Querier.fromParameters(
             dataset, indexesPath, spec.provider(), spec.type(), spec.build(), spec.query())) {
 
-      var queryThreads = queryThreads(spec.runtime());
-      var concurrent = queryThreads != 1;
-      var systemInfo = new SystemInfo();
-      var warmup = warmup(spec.runtime());
       var test = test(spec.runtime());
+      var warmupBudget = duration(spec.runtime(), "warmupDuration");
+      var testBudget = duration(spec.runtime(), "testDuration");
       var testOnTrain = testOnTrain(spec.runtime());
       var trainTestQueries = trainTestQueries(spec.runtime());
-      var k = spec.k();
-      var jfr = jfr(spec.runtime());
       var recall = recall(spec.runtime());
-      var threadStats = threadStats(spec.runtime());
       var random = random(spec.runtime());
+      var targetQps = targetQps(spec.runtime());
+      var executor = executor(spec.runtime());
+      var batchSize = batchSize(spec.runtime());
+      var filters = filters(spec.runtime());
       var numQueries = testOnTrain ? trainTestQueries : dataset.test().size();
       var queries = new ArrayList<float[]>(numQueries);
 
       Preconditions.checkArgument(!(testOnTrain && recall));
+      Preconditions.checkArgument(batchSize >= 1, "batchSize must be positive");
+      Preconditions.checkArgument(
+          !(targetQps.isPresent() && batchSize > 1), "batchSize is not supported with targetQps");
+      Preconditions.checkArgument(
+          !(executor == QueryExecutor.VIRTUAL && batchSize > 1),
+          "batchSize is not supported with the virtual executor");
+      Preconditions.checkArgument(
+          !((warmupBudget.isPresent() || testBudget.isPresent()) && batchSize > 1),
+          "batchSize is not supported with warmupDuration or testDuration");
+      Preconditions.checkArgument(
+          !(filters.stream().anyMatch(Optional::isPresent) && batchSize > 1),
+          "batchSize is not supported with filterSelectivities");
       try (var prom = startPromServer(spec, numQueries * test)) {
 
         for (int i = 0; i < numQueries; i++) {
@@ -83,179 +159,395 @@ public class QueryBench {
           queries.add(vector);
         }
 
-        var recalls = new SynchronizedDescriptiveStatistics();
-        var executionDurations = new SynchronizedDescriptiveStatistics();
-        var minorFaults = new SynchronizedDescriptiveStatistics();
-        var majorFaults = new SynchronizedDescriptiveStatistics();
-
-        try (var pool = new ForkJoinPool(queryThreads)) {
-          try (var progress = ProgressBar.create("warmup", warmup * numQueries)) {
-            if (concurrent) {
-              pool.submit(
-                      () -> {
-                        IntStream.range(0, warmup)
-                            .parallel()
-                            .forEach(
-                                i -> {
-                                  IntStream.range(0, numQueries)
-                                      .parallel()
-                                      .forEach(
-                                          j -> {
-                                            Exceptions.wrap(
-                                                () -> {
-                                                  var query = queries.get(j);
-                                                  index.query(query, k, recall);
-                                                  progress.inc();
-                                                });
-                                          });
-                                });
-                      })
-                  .join();
-            } else {
-              for (int i = 0; i < warmup; i++) {
-                for (int j = 0; j < numQueries; j++) {
-                  var query = queries.get(j);
-                  index.query(query, k, recall);
-                  progress.inc();
-                }
-              }
-            }
-          }
+        // Warm up every filter before completing the warmup, so the index finalises its warmup
+        // state once, from all of them.
+        var timeSeries = new ArrayList<LatencyTimeSeries>();
+        for (var filter : filters) {
+          timeSeries.add(runWarmup(spec, index, queries, filter));
+        }
+        index.warmupComplete();
 
-          //          Thread.sleep(Duration.ofHours(10));
-          Recording recording = null;
-          if (jfr) {
-            var formatter =
-                DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")
-                    .withZone(ZoneId.of("America/Los_Angeles"));
-            var jfrFileName = formatter.format(Instant.now()) + ".jfr";
-            var jfrPath = reportsPath.resolve(jfrFileName);
-            LOGGER.info("starting jfr, will dump to {}", jfrFileName);
-            Configuration config = Configuration.getConfiguration("profile");
-            recording = new Recording(config);
-            recording.setDestination(jfrPath);
-            recording.setDumpOnExit(true);
-            recording.start();
-          }
+        for (int f = 0; f < filters.size(); f++) {
+          testFilter(
+              spec, dataset, index, reportsPath, queries, prom, filters.get(f), timeSeries.get(f));
+        }
+      }
+    }
+  }
 
-          try (var progress = ProgressBar.create("testing", test * numQueries)) {
-            if (concurrent) {
-              pool.submit(
-                      () -> {
-                        IntStream.range(0, test)
-                            .parallel()
-                            .forEach(
-                                i -> {
-                                  IntStream.range(0, numQueries)
-                                      .parallel()
-                                      .forEach(
-                                          j -> {
-                                            Exceptions.wrap(
-                                                () -> {
-                                                  var query = queries.get(j);
-                                                  List<Integer> groundTruth = null;
-                                                  if (recall) {
-                                                    groundTruth = dataset.groundTruth().get(j);
-                                                  }
-                                                  runQuery(
-                                                      index,
-                                                      query,
-                                                      groundTruth,
-                                                      spec.k(),
-                                                      i,
-                                                      j,
-                                                      systemInfo,
-                                                      recalls,
-                                                      executionDurations,
-                                                      minorFaults,
-                                                      majorFaults,
-                                                      concurrent,
-                                                      recall,
-                                                      threadStats,
-                                                      progress,
-                                                      prom.queryDurationSeconds);
-                                                  prom.queries.inc();
-                                                });
-                                          });
-                                });
-                      })
-                  .join();
-            } else {
-              for (int i = 0; i < test; i++) {
-                for (int j = 0; j < numQueries; j++) {
-                  var query = queries.get(j);
-                  var groundTruth = dataset.groundTruth().get(j);
-                  runQuery(
-                      index,
-                      query,
-                      groundTruth,
-                      spec.k(),
-                      i,
-                      j,
-                      systemInfo,
-                      recalls,
-                      executionDurations,
-                      minorFaults,
-                      majorFaults,
-                      concurrent,
-                      recall,
-                      threadStats,
-                      progress,
-                      prom.queryDurationSeconds);
-                  prom.queries.inc();
-                }
+  /**
+   * Runs the warmup queries with the filter, returning the time series their latencies were
+   * recorded in, for the test to continue.
+   */
+  private static LatencyTimeSeries runWarmup(
+      QuerySpec spec, Index.Querier index, List<float[]> queries, Optional<AttributeFilter> filter)
+      throws Exception {
+    var queryThreads = queryThreads(spec.runtime());
+    var concurrent = queryThreads != 1;
+    var warmup = warmup(spec.runtime());
+    var warmupBudget = duration(spec.runtime(), "warmupDuration");
+    var k = spec.k();
+    var recall = recall(spec.runtime());
+    var numQueries = queries.size();
+    var queryResults = new PerThread<>(() -> new QueryResults(k));
+    var timeSeries = LatencyTimeSeries.start("warmup");
+
+    try (var pool = new ForkJoinPool(queryThreads)) {
+      try (var progress =
+          ProgressBar.create("warmup", warmupBudget.isPresent() ? -1 : warmup * numQueries)) {
+        ScheduledQuery warmupQuery =
+            (i, j, scheduledStart) -> {
+              var results = queryResults.acquire();
+              try {
+                var start = System.nanoTime();
+                query(index, queries.get(j), k, recall, filter.orElse(null), results);
+                timeSeries.record(System.nanoTime() - start);
+              } finally {
+                queryResults.release(results);
               }
-              //              }
+              progress.inc();
+            };
+
+        if (warmupBudget.isPresent()) {
+          runClosedLoop(
+              QuerySequence.timed(warmupBudget.get(), numQueries), queryThreads, warmupQuery);
+        } else if (concurrent) {
+          pool.submit(
+                  () -> {
+                    IntStream.range(0, warmup)
+                        .parallel()
+                        .forEach(
+                            i -> {
+                              IntStream.range(0, numQueries)
+                                  .parallel()
+                                  .forEach(
+                                      j -> {
+                                        Exceptions.wrap(() -> warmupQuery.run(i, j, UNSCHEDULED));
+                                      });
+                            });
+                  })
+              .join();
+        } else {
+          for (int i = 0; i < warmup; i++) {
+            for (int j = 0; j < numQueries; j++) {
+              warmupQuery.run(i, j, UNSCHEDULED);
             }
           }
-          if (jfr) {
-            recording.stop();
-            recording.close();
-          }
         }
+      }
+    }
+    return timeSeries;
+  }
 
-        LOGGER.info("completed recall test for {}:", index.description());
-        LOGGER.info("\ttotal queries {}", recalls.getN());
-        if (recall && !testOnTrain) {
-          LOGGER.info("\taverage recall {}", recalls.getMean());
-        }
-        LOGGER.info("\taverage duration {}", Duration.ofNanos((long) executionDurations.getMean()));
-        if (threadStats && !testOnTrain) {
-          LOGGER.info("\taverage minor faults {}", minorFaults.getMean());
-          LOGGER.info("\taverage major faults {}", majorFaults.getMean());
-        }
-        LOGGER.info("\tmax duration {}", Duration.ofNanos((long) executionDurations.getMax()));
-        if (threadStats && !testOnTrain) {
-          LOGGER.info("\tmax minor faults {}", minorFaults.getMax());
-          LOGGER.info("\tmax major faults {}", majorFaults.getMax());
-          LOGGER.info("\ttotal minor faults {}", minorFaults.getSum());
-          LOGGER.info("\ttotal major faults {}", majorFaults.getSum());
-        }
+  private static void testFilter(
+      QuerySpec spec,
+      Dataset dataset,
+      Index.Querier index,
+      Path reportsPath,
+      List<float[]> queries,
+      Prom prom,
+      Optional<AttributeFilter> filter,
+      LatencyTimeSeries timeSeries)
+      throws Exception {
+    var queryThreads = queryThreads(spec.runtime());
+    var concurrent = queryThreads != 1;
+    var systemInfo = new SystemInfo();
+    var test = test(spec.runtime());
+    var testBudget = duration(spec.runtime(), "testDuration");
+    var testOnTrain = testOnTrain(spec.runtime());
+    var k = spec.k();
+    var jfr = jfr(spec.runtime());
+    var recall = recall(spec.runtime());
+    var threadStats = threadStats(spec.runtime());
+    var targetQps = targetQps(spec.runtime());
+    var arrival = arrival(spec.runtime());
+    var executor = executor(spec.runtime());
+    var batchSize = batchSize(spec.runtime());
+    var numQueries = queries.size();
+
+    // Unfiltered queries use the dataset's ground truth, filtered ones need their own.
+    var groundTruth =
+        !recall
+            ? null
+            : filter.isPresent()
+                ? FilteredGroundTruth.compute(dataset, queries, filter.get()::matches, k)
+                : Recall.sortedGroundTruth(dataset.groundTruth(), numQueries, k);
+    var description =
+        filter.map(f -> index.description() + "_" + f.description()).orElse(index.description());
+    // Each query thread reuses its own results buffers, sized for a batch.
+    var queryResults =
+        new PerThread<>(
+            () -> {
+              var results = new QueryResults[batchSize];
+              for (int b = 0; b < batchSize; b++) {
+                results[b] = new QueryResults(k);
+              }
+              return results;
+            });
+
+    var recalls = new SynchronizedDescriptiveStatistics();
+    var executionDurations = new LatencyRecorder();
+    var minorFaults = new SynchronizedDescriptiveStatistics();
+    var majorFaults = new SynchronizedDescriptiveStatistics();
+    Duration testDuration;
+
+    try (var pool = new ForkJoinPool(queryThreads);
+        timeSeries) {
+      //          Thread.sleep(Duration.ofHours(10));
+      Recording recording = null;
+      if (jfr) {
+        var formatter =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")
+                .withZone(ZoneId.of("America/Los_Angeles"));
+        var jfrFileName = formatter.format(Instant.now()) + ".jfr";
+        var jfrPath = reportsPath.resolve(jfrFileName);
+        LOGGER.info("starting jfr, will dump to {}", jfrFileName);
+        Configuration config = Configuration.getConfiguration("profile");
+        recording = new Recording(config);
+        recording.setDestination(jfrPath);
+        recording.setDumpOnExit(true);
+        recording.start();
+      }
 
-        new Report(index.description(), spec, recalls, executionDurations, minorFaults, majorFaults)
-            .write(reportsPath);
+      timeSeries.phase("test");
+      var testStart = System.nanoTime();
+      var testSequence =
+          testBudget
+              .map(budget -> QuerySequence.timed(budget, numQueries))
+              .orElseGet(() -> QuerySequence.passes(test, numQueries));
+      try (var progress =
+              ProgressBar.create("testing", testBudget.isPresent() ? -1 : test * numQueries);
+          var queryLog = queryLog(spec, description, reportsPath)) {
+        ScheduledQuery scheduledQuery =
+            (i, j, scheduledStart) -> {
+              runQuery(
+                  index,
+                  queries.get(j),
+                  recall ? groundTruth[j] : null,
+                  filter.orElse(null),
+                  queryResults,
+                  spec.k(),
+                  i,
+                  j,
+                  scheduledStart,
+                  systemInfo,
+                  recalls,
+                  executionDurations,
+                  timeSeries,
+                  minorFaults,
+                  majorFaults,
+                  // A virtual thread may move between carrier threads mid-query, so its
+                  // faults can't be attributed to a single OS thread.
+                  concurrent && executor == QueryExecutor.PLATFORM,
+                  recall,
+                  threadStats,
+                  queryLog,
+                  progress,
+                  prom.queryDurationSeconds);
+              prom.queries.inc();
+            };
+
+        if (targetQps.isPresent()) {
+          runOpenLoop(
+              testSequence,
+              queryThreads,
+              targetQps.get(),
+              arrival,
+              executor,
+              random(spec.runtime()),
+              scheduledQuery);
+        } else if (executor == QueryExecutor.VIRTUAL) {
+          runClosedLoopVirtual(testSequence, queryThreads, scheduledQuery);
+        } else if (testBudget.isPresent()) {
+          runClosedLoop(testSequence, queryThreads, scheduledQuery);
+        } else if (batchSize > 1) {
+          var numBatches = (numQueries + batchSize - 1) / batchSize;
+          for (int i = 0; i < test; i++) {
+            var round = i;
+            var batches = IntStream.range(0, numBatches);
+            var stream = concurrent ? batches.parallel() : batches;
+            pool.submit(
+                    () ->
+                        stream.forEach(
+                            b ->
+                                Exceptions.wrap(
+                                    () -> {
+                                      var from = b * batchSize;
+                                      var to = Math.min(from + batchSize, numQueries);
+                                      runBatch(
+                                          index,
+                                          queries.subList(from, to),
+                                          groundTruth,
+                                          queryResults,
+                                          spec.k(),
+                                          round,
+                                          from,
+                                          systemInfo,
+                                          recalls,
+                                          executionDurations,
+                                          timeSeries,
+                                          minorFaults,
+                                          majorFaults,
+                                          concurrent,
+                                          recall,
+                                          threadStats,
+                                          queryLog,
+                                          progress,
+                                          prom.queryDurationSeconds);
+                                      prom.queries.inc(to - from);
+                                    })))
+                .join();
+          }
+        } else if (concurrent) {
+          pool.submit(
+                  () -> {
+                    IntStream.range(0, test)
+                        .parallel()
+                        .forEach(
+                            i -> {
+                              IntStream.range(0, numQueries)
+                                  .parallel()
+                                  .forEach(
+                                      j -> {
+                                        Exceptions.wrap(
+                                            () -> {
+                                              runQuery(
+                                                  index,
+                                                  queries.get(j),
+                                                  recall ? groundTruth[j] : null,
+                                                  filter.orElse(null),
+                                                  queryResults,
+                                                  spec.k(),
+                                                  i,
+                                                  j,
+                                                  UNSCHEDULED,
+                                                  systemInfo,
+                                                  recalls,
+                                                  executionDurations,
+                                                  timeSeries,
+                                                  minorFaults,
+                                                  majorFaults,
+                                                  concurrent,
+                                                  recall,
+                                                  threadStats,
+                                                  queryLog,
+                                                  progress,
+                                                  prom.queryDurationSeconds);
+                                              prom.queries.inc();
+                                            });
+                                      });
+                            });
+                  })
+              .join();
+        } else {
+          for (int i = 0; i < test; i++) {
+            for (int j = 0; j < numQueries; j++) {
+              runQuery(
+                  index,
+                  queries.get(j),
+                  recall ? groundTruth[j] : null,
+                  filter.orElse(null),
+                  queryResults,
+                  spec.k(),
+                  i,
+                  j,
+                  UNSCHEDULED,
+                  systemInfo,
+                  recalls,
+                  executionDurations,
+                  timeSeries,
+                  minorFaults,
+                  majorFaults,
+                  concurrent,
+                  recall,
+                  threadStats,
+                  queryLog,
+                  progress,
+                  prom.queryDurationSeconds);
+              prom.queries.inc();
+            }
+          }
+          //              }
+        }
+      }
+      testDuration = Duration.ofNanos(System.nanoTime() - testStart);
+      if (jfr) {
+        recording.stop();
+        recording.close();
       }
     }
+
+    var latencies = executionDurations.merged();
+    var totalQueries = latencies.getTotalCount();
+    LOGGER.info("completed recall test for {}:", description);
+    LOGGER.info("\ttotal queries {}", totalQueries);
+    targetQps.ifPresent(qps -> LOGGER.info("\ttarget qps {} ({} arrivals)", qps, arrival));
+    if (batchSize > 1) {
+      // Durations and faults below are each query's share of its batch's.
+      LOGGER.info("\tbatch size {}", batchSize);
+    }
+    LOGGER.info(
+        "\tachieved qps {}",
+        totalQueries / (testDuration.toNanos() / (double) TimeUnit.SECONDS.toNanos(1)));
+    if (recall && !testOnTrain) {
+      LOGGER.info("\taverage recall {}", recalls.getMean());
+    }
+    LOGGER.info("\taverage duration {}", Duration.ofNanos((long) latencies.getMean()));
+    for (var percentile : REPORTED_PERCENTILES) {
+      LOGGER.info(
+          "\tp{} duration {}",
+          percentile,
+          Duration.ofNanos(latencies.getValueAtPercentile(percentile)));
+    }
+    if (threadStats && !testOnTrain) {
+      LOGGER.info("\taverage minor faults {}", minorFaults.getMean());
+      LOGGER.info("\taverage major faults {}", majorFaults.getMean());
+    }
+    LOGGER.info("\tmax duration {}", Duration.ofNanos(latencies.getMaxValue()));
+    if (threadStats && !testOnTrain) {
+      LOGGER.info("\tmax minor faults {}", minorFaults.getMax());
+      LOGGER.info("\tmax major faults {}", majorFaults.getMax());
+      LOGGER.info("\ttotal minor faults {}", minorFaults.getSum());
+      LOGGER.info("\ttotal major faults {}", majorFaults.getSum());
+    }
+    index.stats().forEach((name, value) -> LOGGER.info("\t{} {}", name, value));
+
+    new Report(description, spec, recalls, latencies, minorFaults, majorFaults).write(reportsPath);
+
+    var timeSeriesPath =
+        reportsPath.resolve(
+            String.format(
+                "%s-query-timeseries-%s-%s.csv",
+                Instant.now().getEpochSecond(), spec.dataset(), description));
+    timeSeries.write(timeSeriesPath);
+    LOGGER.info("wrote latency time series to {}", timeSeriesPath);
   }
 
   private static void runQuery(
       Index.Querier index,
       float[] query,
-      List<Integer> groundTruth,
+      int[] groundTruth,
+      AttributeFilter filter,
+      PerThread<QueryResults[]> queryResults,
       int k,
       int i,
       int j,
+      long scheduledStart,
       SystemInfo systemInfo,
       DescriptiveStatistics recalls,
-      DescriptiveStatistics executionDurations,
+      LatencyRecorder executionDurations,
+      LatencyTimeSeries timeSeries,
       DescriptiveStatistics minorFaults,
       DescriptiveStatistics majorFaults,
       boolean concurrent,
       boolean collectRecall,
       boolean threadStats,
+      QueryLog queryLog,
       Progress progress,
       Gauge.Child queryDurationSeconds)
       throws Exception {
+    // In open-loop mode, the time the query waited to be run since it was scheduled.
+    var queued = scheduledStart == UNSCHEDULED ? 0 : System.nanoTime() - scheduledStart;
     boolean collectThreadStats = systemInfo.getOperatingSystem().getFamily() != "macOS";
 
     StatsCollector statsCollector =
@@ -264,50 +556,395 @@ public class QueryBench {
                 ? new ThreadStatsCollector(systemInfo)
                 : new ProcessStatsCollector(systemInfo)
             : null;
-    var startMinorFaults = 0L;
-    var startMajorFaults = 0L;
-    if (threadStats && collectThreadStats) {
-      Preconditions.checkArgument(statsCollector.update(), "failed to update stats");
-      startMinorFaults = statsCollector.minorFaults();
-      startMajorFaults = statsCollector.majorFaults();
+    // Acquire the results buffer before the query is timed, since with the virtual executor it is
+    // polled from a shared pool.
+    var buffers = queryResults.acquire();
+    var results = buffers[0];
+    Duration duration;
+    try {
+      var startMinorFaults = 0L;
+      var startMajorFaults = 0L;
+      if (threadStats && collectThreadStats) {
+        Preconditions.checkArgument(statsCollector.update(), "failed to update stats");
+        startMinorFaults = statsCollector.minorFaults();
+        startMajorFaults = statsCollector.majorFaults();
+      }
+
+      var start = System.nanoTime();
+      query(index, query, k, collectRecall, filter, results);
+      var end = System.nanoTime();
+
+      var endMinorFaults = 0L;
+      var endMajorFaults = 0L;
+      if (threadStats && collectThreadStats) {
+        Preconditions.checkArgument(statsCollector.update(), "failed to update thread stats");
+        endMinorFaults = statsCollector.minorFaults();
+        endMajorFaults = statsCollector.majorFaults();
+      }
+
+      // In open-loop mode latency includes the time queued since the query was scheduled to be
+      // sent,
+      // so that time spent behind slow queries is not hidden (i.e. no coordinated omission). The
+      // stats sampling and buffer acquisition between dequeueing and sending it are excluded.
+      duration = Duration.ofNanos(queued + end - start);
+      executionDurations.record(duration.toNanos());
+      timeSeries.record(duration.toNanos());
+
+      var recall = Double.NaN;
+      if (collectRecall) {
+        recall = recall(results, groundTruth, k, i, j);
+        recalls.addValue(recall);
+      }
+
+      if (threadStats) {
+        minorFaults.addValue(endMinorFaults - startMinorFaults);
+        majorFaults.addValue(endMajorFaults - startMajorFaults);
+      }
+
+      if (queryLog != null) {
+        queryLog.append(
+            j,
+            i,
+            scheduledStart == UNSCHEDULED ? start : scheduledStart,
+            start,
+            end,
+            recall,
+            threadStats ? endMinorFaults - startMinorFaults : -1,
+            threadStats ? endMajorFaults - startMajorFaults : -1,
+            results);
+      }
+    } finally {
+      queryResults.release(buffers);
     }
 
-    var start = Instant.now();
-    var results = index.query(query, k, collectRecall);
-    var end = Instant.now();
+    queryDurationSeconds.inc((double) duration.toNanos() / (1000 * 1000 * 1000));
+    progress.inc();
+  }
 
-    var endMinorFaults = 0L;
-    var endMajorFaults = 0L;
-    if (threadStats && collectThreadStats) {
-      Preconditions.checkArgument(statsCollector.update(), "failed to update thread stats");
-      endMinorFaults = statsCollector.minorFaults();
-      endMajorFaults = statsCollector.majorFaults();
+  private static void query(
+      Index.Querier index,
+      float[] vector,
+      int k,
+      boolean ensureIds,
+      AttributeFilter filter,
+      QueryResults results)
+      throws IOException {
+    if (filter == null) {
+      index.query(vector, k, ensureIds, results);
+    } else {
+      index.query(vector, k, ensureIds, filter, results);
     }
+  }
 
-    var duration = Duration.between(start, end);
-    executionDurations.addValue(duration.toNanos());
+  /**
+   * Runs a batch of queries through a single {@link Index.Querier#queryBatch} call. The batch is
+   * timed as a whole, and each of its queries is recorded with an equal share of the batch's
+   * duration and faults, so that latencies stay per query.
+   */
+  private static void runBatch(
+      Index.Querier index,
+      List<float[]> queries,
+      int[][] groundTruth,
+      PerThread<QueryResults[]> queryResults,
+      int k,
+      int i,
+      int firstQuery,
+      SystemInfo systemInfo,
+      DescriptiveStatistics recalls,
+      LatencyRecorder executionDurations,
+      LatencyTimeSeries timeSeries,
+      DescriptiveStatistics minorFaults,
+      DescriptiveStatistics majorFaults,
+      boolean concurrent,
+      boolean collectRecall,
+      boolean threadStats,
+      QueryLog queryLog,
+      Progress progress,
+      Gauge.Child queryDurationSeconds)
+      throws Exception {
+    boolean collectThreadStats = systemInfo.getOperatingSystem().getFamily() != "macOS";
 
-    if (collectRecall) {
-      Preconditions.checkArgument(
-          results.size() <= k,
-          "query %s in round %s returned %s results, expected less than k=%s",
-          j,
-          i,
-          results.size(),
-          k);
+    StatsCollector statsCollector =
+        threadStats
+            ? (collectThreadStats && concurrent)
+                ? new ThreadStatsCollector(systemInfo)
+                : new ProcessStatsCollector(systemInfo)
+            : null;
+    var vectors = queries.toArray(new float[0][]);
+    var results = queryResults.acquire();
+    long start;
+    long end;
+    try {
+      var startMinorFaults = 0L;
+      var startMajorFaults = 0L;
+      if (threadStats && collectThreadStats) {
+        Preconditions.checkArgument(statsCollector.update(), "failed to update stats");
+        startMinorFaults = statsCollector.minorFaults();
+        startMajorFaults = statsCollector.majorFaults();
+      }
+
+      start = System.nanoTime();
+      index.queryBatch(vectors, k, collectRecall, results);
+      end = System.nanoTime();
+
+      var endMinorFaults = 0L;
+      var endMajorFaults = 0L;
+      if (threadStats && collectThreadStats) {
+        Preconditions.checkArgument(statsCollector.update(), "failed to update thread stats");
+        endMinorFaults = statsCollector.minorFaults();
+        endMajorFaults = statsCollector.majorFaults();
+      }
+
+      var duration = (end - start) / vectors.length;
+      for (int q = 0; q < vectors.length; q++) {
+        executionDurations.record(duration);
+        timeSeries.record(duration);
+        if (threadStats) {
+          minorFaults.addValue((double) (endMinorFaults - startMinorFaults) / vectors.length);
+          majorFaults.addValue((double) (endMajorFaults - startMajorFaults) / vectors.length);
+        }
 
-      var truePositives = groundTruth.stream().limit(k).filter(results::contains).count();
-      var recall = (double) truePositives / k;
-      recalls.addValue(recall);
+        var recall = Double.NaN;
+        if (collectRecall) {
+          recall = recall(results[q], groundTruth[firstQuery + q], k, i, firstQuery + q);
+          recalls.addValue(recall);
+        }
+
+        if (queryLog != null) {
+          queryLog.append(firstQuery + q, i, start, start, end, recall, -1, -1, results[q]);
+        }
+      }
+    } finally {
+      queryResults.release(results);
     }
 
-    if (threadStats) {
-      minorFaults.addValue(endMinorFaults - startMinorFaults);
-      majorFaults.addValue(endMajorFaults - startMajorFaults);
+    queryDurationSeconds.inc((double) (end - start) / (1000 * 1000 * 1000));
+    progress.inc(vectors.length);
+  }
+
+  /** Computes recall against the query's top k ground truth ids, which must be sorted. */
+  private static double recall(QueryResults results, int[] groundTruth, int k, int i, int j) {
+    Preconditions.checkArgument(
+        results.size() <= k,
+        "query %s in round %s returned %s results, expected less than k=%s",
+        j,
+        i,
+        results.size(),
+        k);
+    return Recall.compute(results, groundTruth, k);
+  }
+
+  /**
+   * Runs the queries open-loop: query sends are scheduled at the target rate regardless of how long
+   * previous queries took, and at most queryThreads execute at once. If the index cannot keep up,
+   * queries queue for an executor thread or permit, and that wait is included in their latency.
+   */
+  private static void runOpenLoop(
+      QuerySequence sequence,
+      int queryThreads,
+      double targetQps,
+      Arrival arrival,
+      QueryExecutor executorType,
+      Random random,
+      ScheduledQuery query) {
+    var meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / targetQps;
+    var permits = new Semaphore(queryThreads);
+    var failure = new AtomicReference<Throwable>();
+
+    try (var executor = executorType.create(queryThreads)) {
+      var start = System.nanoTime();
+      var offset = 0.0;
+      while (failure.get() == null) {
+        var scheduledStart = start + (long) offset;
+        for (var wait = scheduledStart - System.nanoTime();
+            wait > 0;
+            wait = scheduledStart - System.nanoTime()) {
+          LockSupport.parkNanos(wait);
+        }
+
+        var n = sequence.next();
+        if (n == QuerySequence.END) {
+          break;
+        }
+
+        executor.execute(
+            () -> {
+              try {
+                permits.acquire();
+                try {
+                  query.run(sequence.iteration(n), sequence.query(n), scheduledStart);
+                } finally {
+                  permits.release();
+                }
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            });
+        offset += arrival.nextInterval(meanIntervalNanos, random);
+      }
     }
 
-    queryDurationSeconds.inc((double) duration.toNanos() / (1000 * 1000 * 1000));
-    progress.inc();
+    checkFailure(failure);
+  }
+
+  /**
+   * Runs the queries closed-loop with a virtual thread per query, keeping at most queryThreads
+   * queries in flight.
+   */
+  private static void runClosedLoopVirtual(
+      QuerySequence sequence, int queryThreads, ScheduledQuery query) throws InterruptedException {
+    var permits = new Semaphore(queryThreads);
+    var failure = new AtomicReference<Throwable>();
+
+    try (var executor = QueryExecutor.VIRTUAL.create(queryThreads)) {
+      while (failure.get() == null) {
+        permits.acquire();
+
+        var n = sequence.next();
+        if (n == QuerySequence.END) {
+          permits.release();
+          break;
+        }
+
+        executor.execute(
+            () -> {
+              try {
+                query.run(sequence.iteration(n), sequence.query(n), UNSCHEDULED);
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              } finally {
+                permits.release();
+              }
+            });
+      }
+    }
+
+    checkFailure(failure);
+  }
+
+  /** Runs the queries closed-loop on queryThreads platform threads. */
+  private static void runClosedLoop(
+      QuerySequence sequence, int queryThreads, ScheduledQuery query) {
+    var failure = new AtomicReference<Throwable>();
+
+    try (var executor = QueryExecutor.PLATFORM.create(queryThreads)) {
+      for (int thread = 0; thread < queryThreads; thread++) {
+        executor.execute(
+            () -> {
+              try {
+                for (var n = sequence.next();
+                    n != QuerySequence.END && failure.get() == null;
+                    n = sequence.next()) {
+                  query.run(sequence.iteration(n), sequence.query(n), UNSCHEDULED);
+                }
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            });
+      }
+    }
+
+    checkFailure(failure);
+  }
+
+  private static void checkFailure(AtomicReference<Throwable> failure) {
+    if (failure.get() != null) {
+      throw new RuntimeException("query failed", failure.get());
+    }
+  }
+
+  /**
+   * QuerySequence hands out the queries to run in a phase, numbered in the order they're run. A
+   * phase is either a fixed number of passes over the queries, or as many passes as fit in a
+   * wall-clock duration starting from when the sequence is created.
+   */
+  private static final class QuerySequence {
+
+    static final long END = -1;
+
+    private final int numQueries;
+    private final long limit;
+    private final boolean timed;
+    private final long deadlineNanos;
+    private final AtomicLong next = new AtomicLong();
+
+    private QuerySequence(int numQueries, long limit, boolean timed, long deadlineNanos) {
+      this.numQueries = numQueries;
+      this.limit = limit;
+      this.timed = timed;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    static QuerySequence passes(int iterations, int numQueries) {
+      return new QuerySequence(numQueries, (long) iterations * numQueries, false, 0);
+    }
+
+    static QuerySequence timed(Duration duration, int numQueries) {
+      return new QuerySequence(
+          numQueries, Long.MAX_VALUE, true, System.nanoTime() + duration.toNanos());
+    }
+
+    /** Returns the number of the next query to run, or END if the phase is over. */
+    long next() {
+      if (this.timed && System.nanoTime() - this.deadlineNanos >= 0) {
+        return END;
+      }
+
+      var n = this.next.getAndIncrement();
+      return n < this.limit ? n : END;
+    }
+
+    int iteration(long n) {
+      return (int) (n / this.numQueries);
+    }
+
+    int query(long n) {
+      return (int) (n % this.numQueries);
+    }
+  }
+
+  private interface ScheduledQuery {
+    void run(int i, int j, long scheduledStart) throws Exception;
+  }
+
+  private enum Arrival {
+    FIXED,
+    POISSON;
+
+    static Arrival parse(String description) {
+      return switch (description) {
+        case "fixed" -> FIXED;
+        case "poisson" -> POISSON;
+        default -> throw new RuntimeException("unexpected arrival process " + description);
+      };
+    }
+
+    double nextInterval(double meanIntervalNanos, Random random) {
+      return switch (this) {
+        case FIXED -> meanIntervalNanos;
+        case POISSON -> -Math.log(1 - random.nextDouble()) * meanIntervalNanos;
+      };
+    }
+  }
+
+  private enum QueryExecutor {
+    PLATFORM,
+    VIRTUAL;
+
+    static QueryExecutor parse(String description) {
+      return switch (description) {
+        case "platform" -> PLATFORM;
+        case "virtual" -> VIRTUAL;
+        default -> throw new RuntimeException("unexpected executor " + description);
+      };
+    }
+
+    ExecutorService create(int queryThreads) {
+      return switch (this) {
+        case PLATFORM -> Executors.newFixedThreadPool(queryThreads);
+        case VIRTUAL -> Executors.newVirtualThreadPerTaskExecutor();
+      };
+    }
   }
 
   private static Prom startPromServer(QuerySpec spec, int numQueries) throws Exception {
@@ -329,41 +966,40 @@ public class QueryBench {
             .map(Map.Entry::getValue)
             .toArray(String[]::new);
 
-    Gauge.Child queries =
-        Gauge.build()
-            .labelNames(labelNames)
-            .name("queries_total")
-            .help("queries")
-            .register()
-            .labels(labelValues);
-
-    Gauge.Child queryDurationSeconds =
+    Gauge queriesGauge =
+        Gauge.build().labelNames(labelNames).name("queries_total").help("queries").register();
+    Gauge queryDurationGauge =
         Gauge.build()
             .labelNames(labelNames)
             .name("query_duration_seconds")
             .help("queries")
-            .register()
-            .labels(labelValues);
-
-    Gauge.build()
-        .labelNames(labelNames)
-        .name("num_queries")
-        .help("num_queries")
-        .register()
-        .labels(labelValues)
-        .set(numQueries);
+            .register();
+    Gauge numQueriesGauge =
+        Gauge.build().labelNames(labelNames).name("num_queries").help("num_queries").register();
+    numQueriesGauge.labels(labelValues).set(numQueries);
 
     HTTPServer server = new HTTPServer(20000);
-    return new Prom(server, queries, queryDurationSeconds, labelValues);
+    return new Prom(
+        server,
+        queriesGauge.labels(labelValues),
+        queryDurationGauge.labels(labelValues),
+        labelValues,
+        List.of(queriesGauge, queryDurationGauge, numQueriesGauge));
   }
 
   record Prom(
-      HTTPServer server, Gauge.Child queries, Gauge.Child queryDurationSeconds, String[] labels)
+      HTTPServer server,
+      Gauge.Child queries,
+      Gauge.Child queryDurationSeconds,
+      String[] labels,
+      List<Gauge> gauges)
       implements Closeable {
 
     @Override
     public void close() throws IOException {
       server.close();
+      // Unregister the gauges so that the next querier of a sweep can register its own.
+      gauges.forEach(CollectorRegistry.defaultRegistry::unregister);
     }
   }
 
@@ -480,12 +1116,11 @@ public class QueryBench {
     }
   }
 
-  // FIXME: record full fidelity results, as well as some quantiles
   private record Report(
       String indexDescription,
       QuerySpec spec,
       DescriptiveStatistics recall,
-      DescriptiveStatistics executionDurations,
+      Histogram executionDurations,
       DescriptiveStatistics minorFaults,
       DescriptiveStatistics majorFaults) {
 
@@ -494,37 +1129,62 @@ public class QueryBench {
       var path =
           reportsPath.resolve(
               String.format("%s-query-%s-%s", now, spec.dataset(), indexDescription));
-      var data =
-          new String[] {
-            "v1",
-            indexDescription,
-            spec.dataset(),
-            spec.provider(),
-            spec.type(),
-            spec.buildString(),
-            spec.queryString(),
-            spec.runtimeString(),
-            Double.toString(recall.getMean()),
-            Long.toString((long) executionDurations.getMean()),
-            Long.toString((long) executionDurations.getMax()),
-            Double.toString(minorFaults.getMean()),
-            Double.toString(minorFaults.getMax()),
-            Double.toString(minorFaults.getSum()),
-            Double.toString(majorFaults.getMean()),
-            Double.toString(majorFaults.getMax()),
-            Double.toString(majorFaults.getSum()),
-          };
+      var data = new ArrayList<String>();
+      data.add("v2");
+      data.add(indexDescription);
+      data.add(spec.dataset());
+      data.add(spec.provider());
+      data.add(spec.type());
+      data.add(spec.buildString());
+      data.add(spec.queryString());
+      data.add(spec.runtimeString());
+      data.add(Double.toString(recall.getMean()));
+      data.add(Long.toString((long) executionDurations.getMean()));
+      data.add(Long.toString(executionDurations.getMaxValue()));
+      data.add(Double.toString(minorFaults.getMean()));
+      data.add(Double.toString(minorFaults.getMax()));
+      data.add(Double.toString(minorFaults.getSum()));
+      data.add(Double.toString(majorFaults.getMean()));
+      data.add(Double.toString(majorFaults.getMax()));
+      data.add(Double.toString(majorFaults.getSum()));
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(executionDurations.getValueAtPercentile(percentile)));
+      }
 
       try (var writer = Files.newBufferedWriter(path);
           var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
-        printer.printRecord((Object[]) data);
+        printer.printRecord(data);
         printer.flush();
       }
 
       LOGGER.info("wrote report to {}", path);
+
+      // Also write the full latency distribution, in microseconds.
+      var histogramPath = path.resolveSibling(path.getFileName() + ".hgrm");
+      try (var output = new PrintStream(Files.newOutputStream(histogramPath))) {
+        executionDurations.outputPercentileDistribution(output, 1000.0);
+      }
+
+      LOGGER.info("wrote latency distribution to {}", histogramPath);
     }
   }
 
+  /**
+   * Returns the filters to run the benchmark with in turn, given as a comma separated list of
+   * selectivities (e.g. "0.001,0.01,0.1,0.5"). Without any, the benchmark runs once unfiltered.
+   */
+  private static List<Optional<AttributeFilter>> filters(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("filterSelectivities"))
+        .map(
+            selectivities ->
+                Arrays.stream(selectivities.split(","))
+                    .map(String::trim)
+                    .map(Double::parseDouble)
+                    .map(selectivity -> Optional.of(new AttributeFilter(selectivity)))
+                    .toList())
+        .orElse(List.of(Optional.empty()));
+  }
+
   private static int queryThreads(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("queryThreads")).map(Integer::parseInt).orElse(1);
   }
@@ -559,10 +1219,57 @@ public class QueryBench {
     return Optional.ofNullable(runtime.get("threadStats")).map(Boolean::parseBoolean).orElse(true);
   }
 
+  private static QueryLog queryLog(QuerySpec spec, String indexDescription, Path reportsPath)
+      throws IOException {
+    var enabled =
+        Optional.ofNullable(spec.runtime().get("queryLog"))
+            .map(Boolean::parseBoolean)
+            .orElse(false);
+    if (!enabled) {
+      return null;
+    }
+
+    var capacity =
+        Optional.ofNullable(spec.runtime().get("queryLogCapacity"))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_QUERY_LOG_CAPACITY);
+    var path =
+        reportsPath.resolve(
+            String.format(
+                "%s-query-log-%s-%s.bin",
+                Instant.now().getEpochSecond(), spec.dataset(), indexDescription));
+    LOGGER.info("logging queries to {}", path);
+    return QueryLog.create(path, spec.k(), capacity);
+  }
+
   private static boolean jfr(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("jfr")).map(Boolean::parseBoolean).orElse(false);
   }
 
+  private static Optional<Double> targetQps(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("targetQps")).map(Double::parseDouble);
+  }
+
+  private static Arrival arrival(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("arrival")).map(Arrival::parse).orElse(Arrival.FIXED);
+  }
+
+  private static QueryExecutor executor(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("executor"))
+        .map(QueryExecutor::parse)
+        .orElse(QueryExecutor.PLATFORM);
+  }
+
+  private static Optional<Duration> duration(Map<String, String> runtime, String key) {
+    // Accept both ISO-8601 durations (PT1M30S) and the shorter 1m30s form.
+    return Optional.ofNullable(runtime.get(key))
+        .map(value -> Duration.parse(value.startsWith("P") ? value : "PT" + value));
+  }
+
+  private static int batchSize(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("batchSize")).map(Integer::parseInt).orElse(1);
+  }
+
   private static Random random(Map<String, String> runtime) {
     int seed = Optional.ofNullable(runtime.get("seed")).map(Integer::parseInt).orElse(0);
     return new Random(seed);
@@ -0,0 +1,226 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueryLog writes a fixed-size binary record per query, so that individual queries (e.g. the ones
+ * making up the latency tail) can be analyzed offline.
+ *
+ * <p>Records are written by query threads into a preallocated off-heap ring buffer, and a
+ * background thread drains the ring buffer to disk. Query threads only block if the ring buffer is
+ * full.
+ *
+ * <p>The file starts with a 16 byte header of four ints: the magic number 0x514c4f47 ("QLOG"), the
+ * format version, k, and the record size in bytes. Each record then contains, in order:
+ *
+ * <ul>
+ *   <li>thread id (long)
+ *   <li>scheduled start nanos (long), equal to start nanos unless running open-loop
+ *   <li>start nanos (long)
+ *   <li>end nanos (long)
+ *   <li>minor faults (long), -1 if not collected
+ *   <li>major faults (long), -1 if not collected
+ *   <li>query index (int)
+ *   <li>iteration (int)
+ *   <li>recall (float), NaN if not collected
+ *   <li>number of returned ids (int)
+ *   <li>k returned ids (int), padded with -1
+ * </ul>
+ *
+ * <p>All values are little endian, and records are padded to a multiple of 8 bytes.
+ */
+final class QueryLog implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryLog.class);
+
+  private static final int MAGIC = 0x514c4f47;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 * Integer.BYTES;
+  private static final int FIXED_RECORD_BYTES = 6 * Long.BYTES + 4 * Integer.BYTES;
+  private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private static final ValueLayout.OfLong LONG =
+      ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final ValueLayout.OfInt INT =
+      ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final ValueLayout.OfFloat FLOAT =
+      ValueLayout.JAVA_FLOAT.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+  private final Path path;
+  private final FileChannel channel;
+  private final Arena arena;
+  private final MemorySegment ring;
+  private final int capacity;
+  private final int k;
+  private final int recordBytes;
+
+  // Sequence numbers of records claimed by query threads, and drained by the writer thread.
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong drained = new AtomicLong();
+  // The sequence number of the record last published to each slot of the ring.
+  private final AtomicLongArray published;
+  private final LongAdder stalls = new LongAdder();
+
+  private final Thread writer;
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+
+  private QueryLog(Path path, FileChannel channel, int capacity, int k) {
+    this.path = path;
+    this.channel = channel;
+    this.capacity = capacity;
+    this.k = k;
+    this.recordBytes = recordBytes(k);
+    this.arena = Arena.ofShared();
+    this.ring = this.arena.allocate((long) capacity * this.recordBytes, Long.BYTES);
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      this.published.set(i, -1);
+    }
+
+    this.writer = Thread.ofPlatform().name("query-log-writer").daemon().start(this::drain);
+  }
+
+  static QueryLog create(Path path, int k, int capacity) throws IOException {
+    Preconditions.checkArgument(
+        Integer.bitCount(capacity) == 1, "query log capacity must be a power of two");
+
+    var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(k).putInt(recordBytes(k)).flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+
+    return new QueryLog(path, channel, capacity, k);
+  }
+
+  void append(
+      int query,
+      int iteration,
+      long scheduledStartNanos,
+      long startNanos,
+      long endNanos,
+      double recall,
+      long minorFaults,
+      long majorFaults,
+      QueryResults results) {
+    var sequence = this.claimed.getAndIncrement();
+    if (sequence - this.drained.get() >= this.capacity) {
+      this.stalls.increment();
+      while (sequence - this.drained.get() >= this.capacity) {
+        if (this.failure != null) {
+          throw new RuntimeException("query log writer failed", this.failure);
+        }
+        LockSupport.parkNanos(WAIT_NANOS);
+      }
+    }
+
+    var slot = (int) (sequence & (this.capacity - 1));
+    var offset = (long) slot * this.recordBytes;
+    this.ring.set(LONG, offset, Thread.currentThread().threadId());
+    this.ring.set(LONG, offset + 8, scheduledStartNanos);
+    this.ring.set(LONG, offset + 16, startNanos);
+    this.ring.set(LONG, offset + 24, endNanos);
+    this.ring.set(LONG, offset + 32, minorFaults);
+    this.ring.set(LONG, offset + 40, majorFaults);
+    this.ring.set(INT, offset + 48, query);
+    this.ring.set(INT, offset + 52, iteration);
+    this.ring.set(FLOAT, offset + 56, (float) recall);
+
+    var numIds = Math.min(results.size(), this.k);
+    this.ring.set(INT, offset + 60, numIds);
+    var idsOffset = offset + FIXED_RECORD_BYTES;
+    for (int i = 0; i < this.k; i++) {
+      this.ring.set(INT, idsOffset + (long) i * Integer.BYTES, i < numIds ? results.id(i) : -1);
+    }
+
+    // The volatile write publishes the record contents to the writer thread.
+    this.published.set(slot, sequence);
+  }
+
+  @Override
+  public void close() throws Exception {
+    this.closed = true;
+    this.writer.join();
+    this.channel.close();
+    this.arena.close();
+
+    if (this.failure != null) {
+      throw new RuntimeException("query log writer failed", this.failure);
+    }
+
+    LOGGER.info(
+        "wrote {} query records to {}, {} queries waited for ring buffer space",
+        this.drained.get(),
+        this.path,
+        this.stalls.sum());
+  }
+
+  private void drain() {
+    try {
+      var next = 0L;
+      while (true) {
+        var end = next;
+        while (end - next < this.capacity
+            && this.published.get((int) (end & (this.capacity - 1))) == end) {
+          end++;
+        }
+
+        if (end == next) {
+          // Appends happen-before close(), so once closed every claimed record is published.
+          if (this.closed && this.claimed.get() == next) {
+            return;
+          }
+
+          LockSupport.parkNanos(WAIT_NANOS);
+          continue;
+        }
+
+        var startSlot = (int) (next & (this.capacity - 1));
+        var count = end - next;
+        var firstChunk = Math.min(count, this.capacity - startSlot);
+        write(startSlot, firstChunk);
+        if (firstChunk < count) {
+          write(0, count - firstChunk);
+        }
+
+        next = end;
+        this.drained.set(next);
+      }
+    } catch (Throwable t) {
+      this.failure = t;
+    }
+  }
+
+  private void write(int slot, long count) throws IOException {
+    var buffer =
+        this.ring.asSlice((long) slot * this.recordBytes, count * this.recordBytes).asByteBuffer();
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer);
+    }
+  }
+
+  private static int recordBytes(int k) {
+    var bytes = FIXED_RECORD_BYTES + k * Integer.BYTES;
+    return (bytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+  }
+}
@@ -0,0 +1,35 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.GroundTruth;
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
+import java.util.Arrays;
+
+/** Recall computations shared by the benchmarks. */
+final class Recall {
+
+  private Recall() {}
+
+  /**
+   * Returns the top k ground truth ids of each query as a sorted int[], so that recall can be
+   * computed without boxing.
+   */
+  static int[][] sortedGroundTruth(GroundTruth groundTruth, int numQueries, int k) {
+    var sorted = new int[numQueries][];
+    for (int i = 0; i < numQueries; i++) {
+      sorted[i] = groundTruth.topK(i, k);
+      Arrays.sort(sorted[i]);
+    }
+    return sorted;
+  }
+
+  /** Computes recall against the query's top k ground truth ids, which must be sorted. */
+  static double compute(QueryResults results, int[] groundTruth, int k) {
+    var truePositives = 0;
+    for (int r = 0; r < results.size(); r++) {
+      if (Arrays.binarySearch(groundTruth, results.id(r)) >= 0) {
+        truePositives++;
+      }
+    }
+    return (double) truePositives / k;
+  }
+}
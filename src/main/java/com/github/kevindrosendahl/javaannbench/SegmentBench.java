@@ -0,0 +1,263 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.LuceneIndex;
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.LatencyRecorder;
+import com.github.kevindrosendahl.javaannbench.util.PerThread;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.stream.IntStream;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SegmentBench measures how the number of segments in a lucene index affects query latency and
+ * throughput, to weigh the cost of force merging an index against its effect on queries.
+ *
+ * <p>The index must have been built without force merging. It is copied, and the copy is queried as
+ * built and then after being merged down to each of the configured segment counts in turn, from the
+ * most segments to the fewest. The time each merge takes is reported along with the queries.
+ */
+public class SegmentBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SegmentBench.class);
+
+  private static final String SWEEP_DIRECTORY = "segment-sweep";
+  private static final int DEFAULT_WARMUP_ITERATIONS = 1;
+  private static final int DEFAULT_TEST_ITERATIONS = 2;
+  private static final double[] REPORTED_PERCENTILES = new double[] {50, 90, 99, 99.9, 99.99};
+
+  public static void run(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
+      throws Exception {
+    Preconditions.checkArgument(
+        spec.provider().equals("lucene"), "only lucene indexes can be merged");
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var segmentCounts = segmentCounts(spec.runtime());
+    var queryThreads = queryThreads(spec.runtime());
+    var warmup = warmup(spec.runtime());
+    var test = test(spec.runtime());
+
+    var buildParameters = new Index.Builder.Parameters(spec.provider(), spec.type(), spec.build());
+    var indexDirectory = LuceneIndex.indexDirectory(buildParameters);
+    var source = indexesPath.resolve(dataset.name()).resolve(indexDirectory);
+    Preconditions.checkArgument(source.toFile().exists(), "index does not exist at %s", source);
+
+    // Merge a copy, so that the built index is left as it was.
+    var sweepIndexesPath = indexesPath.resolve(SWEEP_DIRECTORY);
+    var sweepDatasetPath = sweepIndexesPath.resolve(dataset.name());
+    var copy = sweepDatasetPath.resolve(indexDirectory);
+    FileUtils.deleteDirectory(copy.toFile());
+    LOGGER.info("copying {} to {}", source, copy);
+    FileUtils.copyDirectory(source.toFile(), copy.toFile());
+
+    try (var pool = new ForkJoinPool(queryThreads)) {
+      var numQueries = dataset.test().size();
+      var queries = IntStream.range(0, numQueries).mapToObj(dataset.test()::vectorValue).toList();
+      var groundTruth = Recall.sortedGroundTruth(dataset.groundTruth(), numQueries, spec.k());
+
+      var results = new ArrayList<Result>();
+      var description = "";
+      var segments = Integer.MAX_VALUE;
+      var mergeDuration = Duration.ZERO;
+      for (int i = 0; i <= segmentCounts.size(); i++) {
+        if (i > 0) {
+          var target = segmentCounts.get(i - 1);
+          if (target >= segments) {
+            LOGGER.info("index already has {} segments, skipping {}", segments, target);
+            continue;
+          }
+
+          LOGGER.info("merging down to {} segments", target);
+          var mergeStart = Instant.now();
+          LuceneIndex.forceMerge(sweepDatasetPath, buildParameters, target);
+          mergeDuration = Duration.between(mergeStart, Instant.now());
+        }
+
+        try (var index =
+            Index.Querier.fromParameters(
+                dataset,
+                sweepIndexesPath,
+                spec.provider(),
+                spec.type(),
+                spec.build(),
+                spec.query())) {
+          description = index.description();
+          segments = (int) index.stats().get("segments");
+
+          for (int iteration = 0; iteration < warmup; iteration++) {
+            measure(index, pool, queries, groundTruth, spec.k(), "warmup");
+          }
+          index.warmupComplete();
+
+          var latencies = new Histogram(3);
+          var recall = 0.0;
+          var testStart = Instant.now();
+          for (int iteration = 0; iteration < test; iteration++) {
+            var measured = measure(index, pool, queries, groundTruth, spec.k(), "testing");
+            latencies.add(measured.latencies);
+            recall += measured.recall;
+          }
+          var testDuration = Duration.between(testStart, Instant.now());
+
+          var result =
+              new Result(
+                  segments,
+                  mergeDuration,
+                  (long) test * numQueries,
+                  testDuration,
+                  latencies,
+                  recall / test);
+          results.add(result);
+          LOGGER.info(
+              "{} segments ({} slices, merged in {}): {} qps, p50 {} p99 {}, recall {}",
+              segments,
+              index.stats().get("slices"),
+              mergeDuration,
+              result.qps(),
+              Duration.ofNanos(result.latencies.getValueAtPercentile(50)),
+              Duration.ofNanos(result.latencies.getValueAtPercentile(99)),
+              result.recall);
+        }
+      }
+
+      new Report(description, spec, results).write(reportsPath);
+    } finally {
+      FileUtils.deleteDirectory(copy.toFile());
+    }
+  }
+
+  /** Runs each query once across the pool's threads, returning the latencies and average recall. */
+  private static Measured measure(
+      Index.Querier index,
+      ForkJoinPool pool,
+      List<float[]> queries,
+      int[][] groundTruth,
+      int k,
+      String description) {
+    var latencies = new LatencyRecorder();
+    var recall = new DoubleAdder();
+    var queryResults = new PerThread<>(() -> new QueryResults(k));
+    try (var progress = ProgressBar.create(description, queries.size())) {
+      pool.submit(
+              () ->
+                  IntStream.range(0, queries.size())
+                      .parallel()
+                      .forEach(
+                          q -> {
+                            var results = queryResults.acquire();
+                            var start = System.nanoTime();
+                            Exceptions.wrap(() -> index.query(queries.get(q), k, true, results));
+                            latencies.record(System.nanoTime() - start);
+                            recall.add(Recall.compute(results, groundTruth[q], k));
+                            queryResults.release(results);
+                            progress.inc();
+                          }))
+          .join();
+    }
+    return new Measured(latencies.merged(), recall.sum() / queries.size());
+  }
+
+  private record Measured(Histogram latencies, double recall) {}
+
+  private record Result(
+      int segments,
+      Duration mergeDuration,
+      long queries,
+      Duration duration,
+      Histogram latencies,
+      double recall) {
+
+    double qps() {
+      return this.queries / (this.duration.toNanos() / 1e9);
+    }
+  }
+
+  private record Report(String indexDescription, QuerySpec spec, List<Result> results) {
+
+    void write(Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var path =
+          reportsPath.resolve(
+              String.format("%s-segments-%s-%s", now, spec.dataset(), indexDescription));
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        // A row per segment count.
+        for (var result : results) {
+          var data = new ArrayList<String>();
+          data.add("v1");
+          data.add(indexDescription);
+          data.add(spec.dataset());
+          data.add(spec.provider());
+          data.add(spec.type());
+          data.add(spec.buildString());
+          data.add(spec.queryString());
+          data.add(spec.runtimeString());
+          data.add(Integer.toString(result.segments));
+          data.add(Long.toString(result.mergeDuration.toNanos()));
+          data.add(Long.toString(result.queries));
+          data.add(Long.toString(result.duration.toNanos()));
+          data.add(Double.toString(result.qps()));
+          data.add(Double.toString(result.recall));
+          data.add(Long.toString((long) result.latencies.getMean()));
+          for (var percentile : REPORTED_PERCENTILES) {
+            data.add(Long.toString(result.latencies.getValueAtPercentile(percentile)));
+          }
+          printer.printRecord(data);
+        }
+        printer.flush();
+      }
+
+      LOGGER.info("wrote report to {}", path);
+    }
+  }
+
+  /**
+   * Returns the segment counts to merge down to, given as a comma separated list (e.g.
+   * "16,8,4,2,1"), from the most to the fewest.
+   */
+  private static List<Integer> segmentCounts(Map<String, String> runtime) {
+    return Arrays.stream(Optional.ofNullable(runtime.get("segmentCounts")).orElse("1").split(","))
+        .map(String::strip)
+        .map(Integer::parseInt)
+        .peek(count -> Preconditions.checkArgument(count > 0, "segment counts must be positive"))
+        .distinct()
+        .sorted(Comparator.reverseOrder())
+        .toList();
+  }
+
+  private static int queryThreads(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("queryThreads")).map(Integer::parseInt).orElse(1);
+  }
+
+  private static int warmup(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("warmup"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_WARMUP_ITERATIONS);
+  }
+
+  private static int test(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("test"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_TEST_ITERATIONS);
+  }
+}
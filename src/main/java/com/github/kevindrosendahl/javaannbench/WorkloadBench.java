@@ -0,0 +1,396 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.dataset.FilteredGroundTruth;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.QueryResults;
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.LatencyRecorder;
+import com.github.kevindrosendahl.javaannbench.util.PerThread;
+import com.google.common.base.Preconditions;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WorkloadBench measures a live index while it is being mutated, rather than a frozen one.
+ *
+ * <p>The index is first loaded with a fraction of the train vectors. Then, in each round, threads
+ * interleave inserts of the remaining train vectors, deletes of random inserted vectors, and test
+ * queries at the configured ratios. Between rounds mutations are paused and recall is measured
+ * against the vectors live at that point, so recall drift over the course of the workload can be
+ * seen.
+ */
+public class WorkloadBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorkloadBench.class);
+
+  private static final double DEFAULT_INITIAL_FRACTION = 0.5;
+  private static final int DEFAULT_ROUNDS = 10;
+  private static final int DEFAULT_OPERATIONS_PER_ROUND = 100000;
+  private static final int DEFAULT_RECALL_QUERIES = 100;
+  // Deletes pick random inserted ids, retrying this many times if they were already deleted.
+  private static final int DELETE_ATTEMPTS = 8;
+  private static final double[] REPORTED_PERCENTILES = new double[] {50, 90, 99, 99.9, 99.99};
+
+  public static void run(QuerySpec spec, Path datasetsPath, Path reportsPath) throws Exception {
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var threads = threads(spec.runtime());
+    var mix = OperationMix.parse(spec.runtime());
+    var rounds = rounds(spec.runtime());
+    var operationsPerRound = operationsPerRound(spec.runtime());
+    var recallQueries = Math.min(recallQueries(spec.runtime()), dataset.test().size());
+    var size = dataset.train().size();
+    var initial = (int) (size * initialFraction(spec.runtime()));
+    var k = spec.k();
+    Preconditions.checkArgument(initial > 0, "initialFraction must load at least one vector");
+
+    try (var index =
+        Index.Live.fromParameters(
+            dataset, spec.provider(), spec.type(), spec.build(), spec.query())) {
+      var state = new LiveSet(size, initial);
+      var queryResults = new PerThread<>(() -> new QueryResults(k));
+      var recallQueryVectors =
+          IntStream.range(0, recallQueries).mapToObj(dataset.test()::vectorValue).toList();
+
+      try (var pool = new ForkJoinPool(threads)) {
+        var loadStart = Instant.now();
+        try (var progress = ProgressBar.create("loading", initial)) {
+          pool.submit(
+                  () ->
+                      IntStream.range(0, initial)
+                          .parallel()
+                          .forEach(
+                              i -> {
+                                Exceptions.wrap(() -> index.insert(i));
+                                progress.inc();
+                              }))
+              .join();
+        }
+        LOGGER.info(
+            "loaded {} vectors into {} in {}",
+            initial,
+            index.description(),
+            Duration.between(loadStart, Instant.now()));
+
+        var recalls = new ArrayList<Double>();
+        recalls.add(recall(index, dataset, recallQueryVectors, state, k));
+        LOGGER.info("recall before mutations: {}", recalls.getFirst());
+
+        var queryLatencies = new Histogram(3);
+        var insertLatencies = new Histogram(3);
+        var deleteLatencies = new Histogram(3);
+        var inserts = new AtomicLong();
+        var deletes = new AtomicLong();
+        var queries = new AtomicLong();
+        var mutationDuration = Duration.ZERO;
+
+        for (int round = 1; round <= rounds; round++) {
+          var roundQueries = new LatencyRecorder();
+          var roundInserts = new LatencyRecorder();
+          var roundDeletes = new LatencyRecorder();
+          var insertsBefore = inserts.get();
+
+          var roundStart = Instant.now();
+          try (var progress = ProgressBar.create("round " + round, operationsPerRound)) {
+            pool.submit(
+                    () ->
+                        IntStream.range(0, operationsPerRound)
+                            .parallel()
+                            .forEach(
+                                op -> {
+                                  var random = ThreadLocalRandom.current();
+                                  var operation = mix.next(random.nextDouble());
+
+                                  if (operation == Operation.INSERT) {
+                                    var id = state.nextInsert();
+                                    if (id.isPresent()) {
+                                      var start = System.nanoTime();
+                                      Exceptions.wrap(() -> index.insert(id.get()));
+                                      roundInserts.record(System.nanoTime() - start);
+                                      inserts.incrementAndGet();
+                                      progress.inc();
+                                      return;
+                                    }
+                                    // Every train vector has been inserted, so query instead.
+                                    operation = Operation.QUERY;
+                                  }
+
+                                  if (operation == Operation.DELETE) {
+                                    var id = state.nextDelete(random);
+                                    if (id.isPresent()) {
+                                      var start = System.nanoTime();
+                                      Exceptions.wrap(() -> index.delete(id.get()));
+                                      roundDeletes.record(System.nanoTime() - start);
+                                      deletes.incrementAndGet();
+                                    }
+                                    progress.inc();
+                                    return;
+                                  }
+
+                                  var vector =
+                                      dataset
+                                          .test()
+                                          .vectorValue(random.nextInt(dataset.test().size()));
+                                  var results = queryResults.acquire();
+                                  var start = System.nanoTime();
+                                  Exceptions.wrap(() -> index.query(vector, k, results));
+                                  roundQueries.record(System.nanoTime() - start);
+                                  queryResults.release(results);
+                                  queries.incrementAndGet();
+                                  progress.inc();
+                                }))
+                .join();
+          }
+          var roundDuration = Duration.between(roundStart, Instant.now());
+          mutationDuration = mutationDuration.plus(roundDuration);
+
+          var roundQueryLatencies = roundQueries.merged();
+          queryLatencies.add(roundQueryLatencies);
+          insertLatencies.add(roundInserts.merged());
+          deleteLatencies.add(roundDeletes.merged());
+          recalls.add(recall(index, dataset, recallQueryVectors, state, k));
+
+          LOGGER.info(
+              "round {}: {} inserts/s, query p50 {} p99 {}, {} live vectors, recall {}",
+              round,
+              perSecond(inserts.get() - insertsBefore, roundDuration),
+              Duration.ofNanos(roundQueryLatencies.getValueAtPercentile(50)),
+              Duration.ofNanos(roundQueryLatencies.getValueAtPercentile(99)),
+              state.live(),
+              recalls.getLast());
+        }
+
+        LOGGER.info("completed workload for {}:", index.description());
+        LOGGER.info(
+            "\tinserts {} ({} per second)", inserts, perSecond(inserts.get(), mutationDuration));
+        LOGGER.info("\tdeletes {}", deletes);
+        LOGGER.info("\tqueries {}", queries);
+        for (var percentile : REPORTED_PERCENTILES) {
+          LOGGER.info(
+              "\tp{} query latency {}, insert latency {}",
+              percentile,
+              Duration.ofNanos(queryLatencies.getValueAtPercentile(percentile)),
+              Duration.ofNanos(insertLatencies.getValueAtPercentile(percentile)));
+        }
+        LOGGER.info("\trecall by round {}", recalls);
+        LOGGER.info("\trecall drift {}", recalls.getLast() - recalls.getFirst());
+
+        new Report(
+                index.description(),
+                spec,
+                inserts.get(),
+                deletes.get(),
+                queries.get(),
+                mutationDuration,
+                queryLatencies,
+                insertLatencies,
+                deleteLatencies,
+                recalls)
+            .write(reportsPath);
+      }
+    }
+  }
+
+  /**
+   * Returns the index's average recall over the queries, against ground truth computed by brute
+   * force over the vectors currently live. Must not run concurrently with mutations.
+   */
+  private static double recall(
+      Index.Live index, Dataset dataset, List<float[]> queries, LiveSet state, int k)
+      throws Exception {
+    var groundTruth = FilteredGroundTruth.compute(dataset, queries, state::isLive, k);
+    var results = new QueryResults(k);
+    var total = 0.0;
+    for (int i = 0; i < queries.size(); i++) {
+      index.query(queries.get(i), k, results);
+      total += Recall.compute(results, groundTruth[i], k);
+    }
+    return total / queries.size();
+  }
+
+  private static double perSecond(long count, Duration duration) {
+    return count / (duration.toNanos() / 1e9);
+  }
+
+  private enum Operation {
+    INSERT,
+    DELETE,
+    QUERY
+  }
+
+  /** The relative frequency of each operation, normalized so that they sum to 1. */
+  private record OperationMix(double insert, double delete, double query) {
+
+    static OperationMix parse(Map<String, String> runtime) {
+      var insert = ratio(runtime, "insertRatio", 1);
+      var delete = ratio(runtime, "deleteRatio", 1);
+      var query = ratio(runtime, "queryRatio", 8);
+      var total = insert + delete + query;
+      Preconditions.checkArgument(total > 0, "at least one operation ratio must be positive");
+      return new OperationMix(insert / total, delete / total, query / total);
+    }
+
+    /** Returns the operation for a uniformly distributed value in [0, 1). */
+    Operation next(double value) {
+      if (value < this.insert) {
+        return Operation.INSERT;
+      }
+      return value < this.insert + this.delete ? Operation.DELETE : Operation.QUERY;
+    }
+
+    private static double ratio(Map<String, String> runtime, String key, double orElse) {
+      var ratio = Optional.ofNullable(runtime.get(key)).map(Double::parseDouble).orElse(orElse);
+      Preconditions.checkArgument(ratio >= 0, "%s must not be negative", key);
+      return ratio;
+    }
+  }
+
+  /**
+   * LiveSet tracks which train vectors have been inserted and deleted. Train vectors are inserted
+   * in id order, so the inserted ids are those less than the next id to insert.
+   */
+  private static final class LiveSet {
+    private final int size;
+    private final AtomicInteger next;
+    // 1 once the vector has been deleted.
+    private final AtomicIntegerArray deleted;
+
+    LiveSet(int size, int initial) {
+      this.size = size;
+      this.next = new AtomicInteger(initial);
+      this.deleted = new AtomicIntegerArray(size);
+    }
+
+    Optional<Integer> nextInsert() {
+      var id = this.next.getAndUpdate(next -> Math.min(next + 1, this.size));
+      return id < this.size ? Optional.of(id) : Optional.empty();
+    }
+
+    /** Claims a random inserted vector that hasn't been deleted to delete, if one is found. */
+    Optional<Integer> nextDelete(ThreadLocalRandom random) {
+      for (int attempt = 0; attempt < DELETE_ATTEMPTS; attempt++) {
+        var id = random.nextInt(this.next.get());
+        if (this.deleted.compareAndSet(id, 0, 1)) {
+          return Optional.of(id);
+        }
+      }
+      return Optional.empty();
+    }
+
+    boolean isLive(int id) {
+      return id < this.next.get() && this.deleted.get(id) == 0;
+    }
+
+    int live() {
+      var inserted = this.next.get();
+      return (int) IntStream.range(0, inserted).filter(this::isLive).count();
+    }
+  }
+
+  private record Report(
+      String indexDescription,
+      QuerySpec spec,
+      long inserts,
+      long deletes,
+      long queries,
+      Duration duration,
+      Histogram queryLatencies,
+      Histogram insertLatencies,
+      Histogram deleteLatencies,
+      List<Double> recalls) {
+
+    void write(Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var path =
+          reportsPath.resolve(
+              String.format("%s-workload-%s-%s", now, spec.dataset(), indexDescription));
+      var data = new ArrayList<String>();
+      data.add("v1");
+      data.add(indexDescription);
+      data.add(spec.dataset());
+      data.add(spec.provider());
+      data.add(spec.type());
+      data.add(spec.buildString());
+      data.add(spec.queryString());
+      data.add(spec.runtimeString());
+      data.add(Long.toString(inserts));
+      data.add(Long.toString(deletes));
+      data.add(Long.toString(queries));
+      data.add(Long.toString(duration.toNanos()));
+      data.add(Double.toString(perSecond(inserts, duration)));
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(queryLatencies.getValueAtPercentile(percentile)));
+      }
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(insertLatencies.getValueAtPercentile(percentile)));
+      }
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(deleteLatencies.getValueAtPercentile(percentile)));
+      }
+      data.add(recalls.stream().map(Object::toString).collect(Collectors.joining("-")));
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        printer.printRecord(data);
+        printer.flush();
+      }
+
+      LOGGER.info("wrote report to {}", path);
+
+      // Also write the full query latency distribution during mutation, in microseconds.
+      var histogramPath = path.resolveSibling(path.getFileName() + ".hgrm");
+      try (var output = new PrintStream(Files.newOutputStream(histogramPath))) {
+        queryLatencies.outputPercentileDistribution(output, 1000.0);
+      }
+
+      LOGGER.info("wrote query latency distribution to {}", histogramPath);
+    }
+  }
+
+  private static int threads(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("threads")).map(Integer::parseInt).orElse(1);
+  }
+
+  private static double initialFraction(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("initialFraction"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_INITIAL_FRACTION);
+  }
+
+  private static int rounds(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("rounds")).map(Integer::parseInt).orElse(DEFAULT_ROUNDS);
+  }
+
+  private static int operationsPerRound(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("operationsPerRound"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_OPERATIONS_PER_ROUND);
+  }
+
+  private static int recallQueries(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("recallQueries"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_RECALL_QUERIES);
+  }
+}
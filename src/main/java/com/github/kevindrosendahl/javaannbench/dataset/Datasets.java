@@ -71,7 +71,7 @@ public enum Datasets {
 
     var neighborsPath = datasetPath.resolve("neighbors.ivecs");
     Preconditions.checkArgument(neighborsPath.toFile().exists());
-    var neighbors = IVecs.load(neighborsPath, description.numTestVectors, 100);
+    var neighbors = IVecs.mmap(neighborsPath, description.numTestVectors);
 
     return new Dataset(
         name, description.similarityFunction, description.dimensions, train, test, neighbors);
@@ -0,0 +1,101 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * FilteredGroundTruth computes the true nearest neighbors of queries among only the train vectors
+ * matching a filter. Datasets only come with unfiltered ground truth, so it is computed by brute
+ * force over the matching vectors.
+ */
+public final class FilteredGroundTruth {
+
+  private FilteredGroundTruth() {}
+
+  /**
+   * Returns the ids of each query's k nearest train vectors among those whose ids match the filter,
+   * sorted by id. Queries with fewer than k matching vectors get all of them.
+   */
+  public static int[][] compute(
+      Dataset dataset, List<float[]> queries, IntPredicate filter, int k) {
+    var train = dataset.train();
+    var matching = IntStream.range(0, train.size()).filter(filter).toArray();
+    var similarity =
+        switch (dataset.similarityFunction()) {
+          case COSINE -> VectorSimilarityFunction.COSINE;
+          case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
+          case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
+        };
+    var buffers = ThreadLocal.withInitial(() -> new float[dataset.dimensions()]);
+
+    try (var progress = ProgressBar.create("filtered ground truth", queries.size())) {
+      return IntStream.range(0, queries.size())
+          .parallel()
+          .mapToObj(
+              q -> {
+                var query = queries.get(q);
+                var vector = buffers.get();
+                var nearest = new Nearest(Math.min(k, matching.length));
+                for (var id : matching) {
+                  train.vectorValue(id, vector);
+                  nearest.offer(id, similarity.compare(query, vector));
+                }
+                progress.inc();
+                return nearest.sortedIds();
+              })
+          .toArray(int[][]::new);
+    }
+  }
+
+  /** Keeps the ids with the k highest scores offered. */
+  private static final class Nearest {
+    private final int[] ids;
+    private final float[] scores;
+    private int size = 0;
+    private int min = 0;
+
+    Nearest(int k) {
+      this.ids = new int[k];
+      this.scores = new float[k];
+    }
+
+    void offer(int id, float score) {
+      if (this.size < this.ids.length) {
+        this.ids[this.size] = id;
+        this.scores[this.size] = score;
+        this.size++;
+        if (this.size == this.ids.length) {
+          updateMin();
+        }
+        return;
+      }
+
+      if (this.ids.length == 0 || score <= this.scores[this.min]) {
+        return;
+      }
+
+      this.ids[this.min] = id;
+      this.scores[this.min] = score;
+      updateMin();
+    }
+
+    int[] sortedIds() {
+      var sorted = Arrays.copyOf(this.ids, this.size);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    private void updateMin() {
+      this.min = 0;
+      for (int i = 1; i < this.size; i++) {
+        if (this.scores[i] < this.scores[this.min]) {
+          this.min = i;
+        }
+      }
+    }
+  }
+}
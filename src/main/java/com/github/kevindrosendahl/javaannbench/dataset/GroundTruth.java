@@ -0,0 +1,81 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+/**
+ * GroundTruth holds the true nearest neighbors of each test vector, memory mapped from a headerless
+ * little endian ivecs file.
+ *
+ * <p>The number of neighbors per query (the width) is derived from the file size, so files with any
+ * width can be used.
+ */
+public final class GroundTruth {
+
+  private static final ValueLayout.OfInt INT =
+      ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+  private final MemorySegment segment;
+  private final int size;
+  private final int width;
+
+  private GroundTruth(MemorySegment segment, int size, int width) {
+    this.segment = segment;
+    this.size = size;
+    this.width = width;
+  }
+
+  public static GroundTruth mmap(Path path, int size) throws IOException {
+    try (var channel = FileChannel.open(path)) {
+      var bytes = channel.size();
+      var rowBytes = (long) size * Integer.BYTES;
+      Preconditions.checkArgument(
+          size > 0 && bytes % rowBytes == 0,
+          "ground truth file %s of %s bytes does not hold %s equal width rows",
+          path,
+          bytes,
+          size);
+
+      var segment = channel.map(MapMode.READ_ONLY, 0, bytes, Arena.global());
+      return new GroundTruth(segment, size, Math.toIntExact(bytes / rowBytes));
+    }
+  }
+
+  /** The number of queries. */
+  public int size() {
+    return this.size;
+  }
+
+  /** The number of neighbors held per query. */
+  public int width() {
+    return this.width;
+  }
+
+  /** Returns the rank'th nearest neighbor of the query. */
+  public int get(int query, int rank) {
+    Preconditions.checkElementIndex(query, this.size);
+    Preconditions.checkElementIndex(rank, this.width);
+    return this.segment.getAtIndex(INT, (long) query * this.width + rank);
+  }
+
+  /** Returns an off-heap slice of the query's neighbors, nearest first, in little endian order. */
+  public MemorySegment neighbors(int query) {
+    Preconditions.checkElementIndex(query, this.size);
+    var rowBytes = (long) this.width * Integer.BYTES;
+    return this.segment.asSlice(query * rowBytes, rowBytes);
+  }
+
+  /** Copies the query's k nearest neighbors into an int[]. */
+  public int[] topK(int query, int k) {
+    Preconditions.checkArgument(
+        k <= this.width, "k=%s exceeds ground truth width %s", k, this.width);
+    return neighbors(query).asSlice(0, (long) k * Integer.BYTES).toArray(INT);
+  }
+}
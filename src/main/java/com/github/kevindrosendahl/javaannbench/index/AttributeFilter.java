@@ -0,0 +1,55 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * AttributeFilter matches the train vectors whose synthetic attribute is below a threshold, chosen
+ * so that the given fraction of vectors (the selectivity) match.
+ *
+ * <p>Each vector's attribute is derived by hashing its id, so it is uniformly distributed over [0,
+ * ATTRIBUTE_VALUES) and doesn't need to be stored alongside the dataset. Indexes that filter on
+ * indexed fields (i.e. Lucene) index the attribute when built with the attributes parameter.
+ */
+public final class AttributeFilter {
+
+  public static final int ATTRIBUTE_VALUES = 1 << 20;
+
+  private final double selectivity;
+  private final int threshold;
+
+  public AttributeFilter(double selectivity) {
+    Preconditions.checkArgument(
+        selectivity > 0 && selectivity <= 1, "selectivity must be in (0, 1], got %s", selectivity);
+    this.selectivity = selectivity;
+    this.threshold = (int) Math.max(1, Math.round(selectivity * ATTRIBUTE_VALUES));
+  }
+
+  /** Returns the attribute of the vector with the given id. */
+  public static int attribute(int id) {
+    // The murmur3 finalizer, which spreads sequential ids uniformly.
+    var h = id;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h & (ATTRIBUTE_VALUES - 1);
+  }
+
+  public boolean matches(int id) {
+    return attribute(id) < this.threshold;
+  }
+
+  public double selectivity() {
+    return this.selectivity;
+  }
+
+  /** Vectors whose attribute is less than the threshold match. */
+  public int threshold() {
+    return this.threshold;
+  }
+
+  public String description() {
+    return "filterSelectivity:" + this.selectivity;
+  }
+}
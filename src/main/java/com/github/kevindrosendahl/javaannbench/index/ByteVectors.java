@@ -0,0 +1,270 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ByteVectors holds a dataset's train vectors quantized to bytes, memory mapped from a file that is
+ * written the first time they are needed and reused after.
+ *
+ * <p>int8 multiplies every vector by one scale, mapping the largest magnitude in the train set to
+ * 127, so that angles are preserved. binary keeps one bit per dimension, set if the value is above
+ * the dimension's mean. Lucene's byte similarities have no hamming distance, so binary codes are
+ * expanded to a -1 or 1 byte per dimension when indexed, whose dot products order vectors the same
+ * as hamming distance does. The encoding is named binary-expanded so that index descriptions and
+ * reports show that its index is the size of an int8 one (4x smaller than floats), not 32x smaller.
+ *
+ * <p>The file is a header of the magic number, encoding, size, dimensions, scale, and each
+ * dimension's center, followed by each vector's code.
+ */
+final class ByteVectors {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ByteVectors.class);
+  private static final int MAGIC = 0x42564543;
+
+  enum Encoding {
+    INT8("int8"),
+    BINARY("binary-expanded");
+
+    final String description;
+
+    Encoding(String description) {
+      this.description = description;
+    }
+
+    static Encoding parse(String description) {
+      return switch (description) {
+        case "int8" -> Encoding.INT8;
+        case "binary-expanded" -> Encoding.BINARY;
+        case "binary" -> throw new RuntimeException(
+            "binary codes are indexed expanded to a byte per dimension, use binary-expanded");
+        default -> throw new RuntimeException(
+            "unexpected byte vector encoding "
+                + description
+                + ", expected int8 or binary-expanded");
+      };
+    }
+
+    int codeBytes(int dimensions) {
+      return switch (this) {
+        case INT8 -> dimensions;
+        case BINARY -> (dimensions + Byte.SIZE - 1) / Byte.SIZE;
+      };
+    }
+  }
+
+  private final Encoding encoding;
+  private final int size;
+  private final int dimensions;
+  private final float scale;
+  private final float[] centers;
+  private final MemorySegment codes;
+
+  private ByteVectors(
+      Encoding encoding,
+      int size,
+      int dimensions,
+      float scale,
+      float[] centers,
+      MemorySegment codes) {
+    this.encoding = encoding;
+    this.size = size;
+    this.dimensions = dimensions;
+    this.scale = scale;
+    this.centers = centers;
+    this.codes = codes;
+  }
+
+  /** Returns the path the vectors quantized with the encoding are kept at. */
+  static Path path(Path indexesPath, Encoding encoding) {
+    return indexesPath.resolve("train." + encoding.description);
+  }
+
+  /**
+   * Maps the quantized vectors in the dataset's indexes directory, first quantizing the float
+   * vectors into it if they haven't been yet.
+   */
+  static ByteVectors loadOrCreate(
+      Path indexesPath, MMapRandomAccessVectorValues vectors, Encoding encoding)
+      throws IOException {
+    var path = path(indexesPath, encoding);
+    if (!path.toFile().exists()) {
+      write(path, vectors, encoding);
+    }
+
+    var vectorsBytes = Files.size(path);
+    try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      Preconditions.checkState(input.readInt() == MAGIC, "%s is not a byte vectors file", path);
+      var fileEncoding = Encoding.values()[input.readInt()];
+      var size = input.readInt();
+      var dimensions = input.readInt();
+      Preconditions.checkState(
+          fileEncoding == encoding && size == vectors.size() && dimensions == vectors.dimension(),
+          "%s holds %s %s vectors of %s dimensions, expected %s %s of %s",
+          path,
+          size,
+          fileEncoding.description,
+          dimensions,
+          vectors.size(),
+          encoding.description,
+          vectors.dimension());
+      var scale = input.readFloat();
+      var centers = new float[dimensions];
+      for (int i = 0; i < dimensions; i++) {
+        centers[i] = input.readFloat();
+      }
+
+      var headerBytes = headerBytes(dimensions);
+      try (var channel = FileChannel.open(path)) {
+        var codes =
+            channel.map(MapMode.READ_ONLY, headerBytes, vectorsBytes - headerBytes, Arena.global());
+        return new ByteVectors(encoding, size, dimensions, scale, centers, codes);
+      }
+    }
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  int dimensions() {
+    return this.dimensions;
+  }
+
+  /** Copies the train vector's bytes as indexed into result, which holds dimensions bytes. */
+  void vectorValue(int id, byte[] result) {
+    Preconditions.checkArgument(id >= 0 && id < this.size, "vector %s out of bounds", id);
+    var codeBytes = this.encoding.codeBytes(this.dimensions);
+    var offset = (long) id * codeBytes;
+    switch (this.encoding) {
+      case INT8 -> MemorySegment.copy(
+          this.codes, ValueLayout.JAVA_BYTE, offset, result, 0, this.dimensions);
+      case BINARY -> {
+        for (int i = 0; i < this.dimensions; i++) {
+          var code = this.codes.get(ValueLayout.JAVA_BYTE, offset + i / Byte.SIZE);
+          result[i] = (code & (1 << (i % Byte.SIZE))) != 0 ? (byte) 1 : (byte) -1;
+        }
+      }
+    }
+  }
+
+  /** Quantizes a query vector into result, in the form the train vectors are indexed in. */
+  void quantize(float[] vector, byte[] result) {
+    for (int i = 0; i < this.dimensions; i++) {
+      result[i] =
+          switch (this.encoding) {
+            case INT8 -> int8(vector[i], this.scale);
+            case BINARY -> vector[i] > this.centers[i] ? (byte) 1 : (byte) -1;
+          };
+    }
+  }
+
+  private static void write(Path path, MMapRandomAccessVectorValues vectors, Encoding encoding)
+      throws IOException {
+    var size = vectors.size();
+    var dimensions = vectors.dimension();
+    var buffers = ThreadLocal.withInitial(() -> new float[dimensions]);
+
+    var scale = 1f;
+    var centers = new float[dimensions];
+    switch (encoding) {
+      case INT8 -> {
+        var max =
+            IntStream.range(0, size)
+                .parallel()
+                .mapToDouble(
+                    i -> {
+                      var vector = buffers.get();
+                      vectors.vectorValue(i, vector);
+                      var vectorMax = 0f;
+                      for (var value : vector) {
+                        vectorMax = Math.max(vectorMax, Math.abs(value));
+                      }
+                      return vectorMax;
+                    })
+                .max()
+                .orElse(0);
+        scale = max == 0 ? 1f : (float) (Byte.MAX_VALUE / max);
+      }
+      case BINARY -> {
+        var vector = new float[dimensions];
+        var sums = new double[dimensions];
+        for (int i = 0; i < size; i++) {
+          vectors.vectorValue(i, vector);
+          for (int d = 0; d < dimensions; d++) {
+            sums[d] += vector[d];
+          }
+        }
+        for (int d = 0; d < dimensions; d++) {
+          centers[d] = (float) (sums[d] / size);
+        }
+      }
+    }
+
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var output =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+        var progress = ProgressBar.create("quantizing to " + encoding.description, size)) {
+      output.writeInt(MAGIC);
+      output.writeInt(encoding.ordinal());
+      output.writeInt(size);
+      output.writeInt(dimensions);
+      output.writeFloat(scale);
+      for (var center : centers) {
+        output.writeFloat(center);
+      }
+
+      var vector = new float[dimensions];
+      var code = new byte[encoding.codeBytes(dimensions)];
+      for (int i = 0; i < size; i++) {
+        vectors.vectorValue(i, vector);
+        switch (encoding) {
+          case INT8 -> {
+            for (int d = 0; d < dimensions; d++) {
+              code[d] = int8(vector[d], scale);
+            }
+          }
+          case BINARY -> {
+            Arrays.fill(code, (byte) 0);
+            for (int d = 0; d < dimensions; d++) {
+              if (vector[d] > centers[d]) {
+                code[d / Byte.SIZE] |= (byte) (1 << (d % Byte.SIZE));
+              }
+            }
+          }
+        }
+        output.write(code);
+        progress.inc();
+      }
+    }
+
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    LOGGER.info("quantized {} vectors to {} at {}", size, encoding.description, path);
+  }
+
+  private static byte int8(float value, float scale) {
+    return (byte) Math.max(-Byte.MAX_VALUE, Math.min(Byte.MAX_VALUE, Math.round(value * scale)));
+  }
+
+  private static long headerBytes(int dimensions) {
+    return 4 * Integer.BYTES + Float.BYTES + (long) dimensions * Float.BYTES;
+  }
+}
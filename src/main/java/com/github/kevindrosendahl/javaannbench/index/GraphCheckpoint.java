@@ -0,0 +1,221 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.google.common.base.Preconditions;
+import io.github.jbellis.jvector.graph.NeighborArray;
+import io.github.jbellis.jvector.graph.OnHeapGraphIndex;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GraphCheckpoint persists a partially built in-memory graph, so that a build can resume from it
+ * rather than starting over.
+ *
+ * <p>A checkpoint covers the nodes with ids less than some n, which must all have been added. Nodes
+ * added after n may be concurrently linked into the checkpointed nodes' neighbors while the
+ * checkpoint is written, so those edges are dropped. Each neighbor is stored with its score so that
+ * restoring doesn't have to compare vectors.
+ *
+ * <p>The checkpoint is not a point in time snapshot of the graph. Inserts keep pruning and adding
+ * to neighbor lists while it is written, so a node's list may hold edges that a node written
+ * earlier has since dropped, or miss edges added after it was written. Each list is itself a valid
+ * neighbor set, so the restored graph is usable, just not identical to the graph at any moment.
+ *
+ * <p>The format is a header of the magic number, graph size, checkpointed node count, entry node,
+ * and build time in nanoseconds, followed by each node's neighbor count, neighbors, and scores.
+ */
+final class GraphCheckpoint {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GraphCheckpoint.class);
+  private static final int MAGIC = 0x4a564350;
+
+  private GraphCheckpoint() {}
+
+  /** The nodes a checkpoint covers and how long building them took, across all runs. */
+  record Restored(int nodes, Duration buildDuration) {}
+
+  /**
+   * Adds the checkpoint's nodes and their neighbors to the empty graph. size must match the graph
+   * size the checkpoint was written for.
+   */
+  static Restored restore(Path path, OnHeapGraphIndex<?> graph, int size, float neighborOverflow)
+      throws IOException {
+    Preconditions.checkArgument(graph.size() == 0, "can only restore into an empty graph");
+
+    try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      Preconditions.checkState(input.readInt() == MAGIC, "%s is not a graph checkpoint", path);
+      var checkpointSize = input.readInt();
+      Preconditions.checkState(
+          checkpointSize == size,
+          "checkpoint %s is for a graph of %s nodes, expected %s",
+          path,
+          checkpointSize,
+          size);
+      var nodes = input.readInt();
+      var entry = input.readInt();
+      var buildDuration = Duration.ofNanos(input.readLong());
+
+      try (var progress = ProgressBar.create("restoring", nodes)) {
+        for (int node = 0; node < nodes; node++) {
+          graph.addNode(node);
+        }
+
+        for (int node = 0; node < nodes; node++) {
+          var neighbors = graph.getNeighbors(node);
+          var count = input.readInt();
+          for (int i = 0; i < count; i++) {
+            var neighbor = input.readInt();
+            var score = input.readFloat();
+            neighbors.insert(neighbor, score, neighborOverflow);
+          }
+          progress.inc();
+        }
+      }
+
+      graph.updateEntryNode(entry);
+      return new Restored(nodes, buildDuration);
+    }
+  }
+
+  /**
+   * Writer writes checkpoints on a background thread, so that building can continue while they are
+   * written. A checkpoint requested while the previous one is still being written is skipped.
+   */
+  static final class Writer implements AutoCloseable {
+    private final Path path;
+    private final OnHeapGraphIndex<?> graph;
+    private final int size;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean abandoned = new AtomicBoolean();
+    private Future<?> pending;
+
+    Writer(Path path, OnHeapGraphIndex<?> graph, int size) {
+      this.path = path;
+      this.graph = graph;
+      this.size = size;
+    }
+
+    /**
+     * Starts writing a checkpoint of the first nodes, returning false if the previous checkpoint is
+     * still being written.
+     */
+    boolean checkpoint(int nodes, Duration buildDuration) throws IOException {
+      if (this.pending != null) {
+        if (!this.pending.isDone()) {
+          LOGGER.info("previous checkpoint still being written, skipping checkpoint at {}", nodes);
+          return false;
+        }
+        awaitPending();
+      }
+
+      this.pending = this.executor.submit(() -> write(nodes, buildDuration));
+      return true;
+    }
+
+    /** Abandons any checkpoint being written, leaving the last complete one in place. */
+    @Override
+    public void close() throws IOException {
+      this.abandoned.set(true);
+      try {
+        if (this.pending != null) {
+          awaitPending();
+        }
+      } finally {
+        this.executor.shutdown();
+        Files.deleteIfExists(temporaryPath());
+      }
+    }
+
+    private void awaitPending() throws IOException {
+      try {
+        this.pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for checkpoint", e);
+      } catch (ExecutionException e) {
+        throw new IOException("failed writing checkpoint", e.getCause());
+      }
+    }
+
+    private Void write(int nodes, Duration buildDuration) throws IOException {
+      var start = System.nanoTime();
+      var temporary = temporaryPath();
+      try (var channel =
+              FileChannel.open(
+                  temporary,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.TRUNCATE_EXISTING);
+          var output =
+              new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+        // The entry node is the first node to finish being added, so it is usually checkpointed.
+        var entry = this.graph.getView().entryNode();
+        output.writeInt(MAGIC);
+        output.writeInt(this.size);
+        output.writeInt(nodes);
+        output.writeInt(entry >= 0 && entry < nodes ? entry : 0);
+        output.writeLong(buildDuration.toNanos());
+
+        for (int node = 0; node < nodes; node++) {
+          if (this.abandoned.get()) {
+            return null;
+          }
+
+          // Neighbor sets are replaced rather than mutated, so this node's list is consistent,
+          // though not with the lists of other nodes.
+          NeighborArray neighbors = this.graph.getNeighbors(node).getCurrent();
+          var ids = neighbors.node();
+          var scores = neighbors.score();
+          var count = 0;
+          for (int i = 0; i < neighbors.size(); i++) {
+            if (ids[i] < nodes) {
+              count++;
+            }
+          }
+
+          output.writeInt(count);
+          for (int i = 0; i < neighbors.size(); i++) {
+            if (ids[i] < nodes) {
+              output.writeInt(ids[i]);
+              output.writeFloat(scores[i]);
+            }
+          }
+        }
+
+        // Sync before the rename, so that a crash can't leave a torn checkpoint in place.
+        output.flush();
+        channel.force(true);
+      }
+
+      Files.move(
+          temporary,
+          this.path,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      LOGGER.info(
+          "checkpointed {} nodes in {}", nodes, Duration.ofNanos(System.nanoTime() - start));
+      return null;
+    }
+
+    private Path temporaryPath() {
+      return this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    }
+  }
+}
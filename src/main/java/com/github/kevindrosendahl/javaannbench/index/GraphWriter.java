@@ -0,0 +1,153 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.google.common.base.Preconditions;
+import io.github.jbellis.jvector.graph.GraphIndex;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * GraphWriter writes a graph in the format read by OnDiskGraphIndex, serializing nodes in parallel
+ * rather than streaming them through a single thread.
+ *
+ * <p>Every node's record is the same size, so each node's offset in the file is known up front. The
+ * nodes are split into chunks, and each chunk is serialized into a direct buffer by a pool thread
+ * and written at its offset with a positional write, so chunks can be written in any order.
+ */
+final class GraphWriter {
+
+  // Large enough that each write amortizes its syscall, small enough to keep a buffer per thread.
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+  private GraphWriter() {}
+
+  /**
+   * Writes the graph to path using the pool's threads.
+   *
+   * <p>If fsyncBytes is positive, the file is synced after roughly every fsyncBytes written and
+   * once more at the end, so that dirty pages are flushed as the commit goes rather than all at
+   * once. Otherwise it is left to the OS to flush.
+   */
+  static void write(
+      Path path,
+      GraphIndex<float[]> graph,
+      MMapRandomAccessVectorValues vectors,
+      ByteOrder order,
+      long fsyncBytes,
+      ForkJoinPool pool)
+      throws IOException {
+    var size = graph.size();
+    Preconditions.checkArgument(
+        size == vectors.size(), "graph size %s != vectors size %s", size, vectors.size());
+
+    var dimensions = vectors.dimension();
+    var maxDegree = graph.maxDegree();
+    var recordBytes = Integer.BYTES + dimensions * Float.BYTES + (maxDegree + 1) * Integer.BYTES;
+    var chunkNodes = Math.max(1, CHUNK_BYTES / recordBytes);
+    var chunks = (size + chunkNodes - 1) / chunkNodes;
+
+    try (var channel =
+            FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        var progress = ProgressBar.create("committing", size)) {
+      var header = ByteBuffer.allocate(HEADER_BYTES).order(order);
+      header.putInt(size).putInt(dimensions).putInt(graph.getView().entryNode()).putInt(maxDegree);
+      writeFully(channel, header.flip(), 0);
+
+      var buffers =
+          ThreadLocal.withInitial(
+              () -> ByteBuffer.allocateDirect(chunkNodes * recordBytes).order(order));
+      var sinceSync = new AtomicLong();
+
+      pool.submit(
+              () ->
+                  IntStream.range(0, chunks)
+                      .parallel()
+                      .forEach(
+                          chunk -> {
+                            var first = chunk * chunkNodes;
+                            var last = Math.min(size, first + chunkNodes);
+                            var buffer = buffers.get().clear();
+                            var view = graph.getView();
+                            for (int node = first; node < last; node++) {
+                              writeNode(buffer, view, vectors, node, dimensions, maxDegree, order);
+                            }
+
+                            try {
+                              var offset = HEADER_BYTES + (long) first * recordBytes;
+                              writeFully(channel, buffer.flip(), offset);
+                              var written = (long) (last - first) * recordBytes;
+                              if (fsyncBytes > 0 && sinceSync.addAndGet(written) >= fsyncBytes) {
+                                sinceSync.set(0);
+                                channel.force(false);
+                              }
+                            } catch (IOException e) {
+                              throw new UncheckedIOException(e);
+                            }
+                            progress.inc(last - first);
+                          }))
+          .join();
+
+      if (fsyncBytes > 0) {
+        channel.force(false);
+      }
+    }
+  }
+
+  private static void writeNode(
+      ByteBuffer buffer,
+      GraphIndex.View<float[]> view,
+      MMapRandomAccessVectorValues vectors,
+      int node,
+      int dimensions,
+      int maxDegree,
+      ByteOrder order) {
+    buffer.putInt(node);
+
+    // Copy the vector straight from the mapping, swapping bytes if the graph isn't native order.
+    // The buffer's segment starts at its position.
+    MemorySegment.copy(
+        vectors.vectorSegment(node),
+        ValueLayout.JAVA_FLOAT_UNALIGNED,
+        0,
+        MemorySegment.ofBuffer(buffer),
+        ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(order),
+        0,
+        dimensions);
+    buffer.position(buffer.position() + dimensions * Float.BYTES);
+
+    var neighbors = view.getNeighborsIterator(node);
+    var count = neighbors.size();
+    Preconditions.checkState(
+        count <= maxDegree, "node %s has %s neighbors, more than %s", node, count, maxDegree);
+    buffer.putInt(count);
+    for (int i = 0; i < count; i++) {
+      buffer.putInt(neighbors.nextInt());
+    }
+    for (int i = count; i < maxDegree; i++) {
+      buffer.putInt(-1);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      offset += channel.write(buffer, offset);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.google.common.base.Preconditions;
+import io.github.jbellis.jvector.graph.GraphIndex.View;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * HotNodeCache keeps the vectors and neighbors of a fixed number of graph nodes in an off-heap
+ * arena, so that searches visiting them don't have to read the graph.
+ *
+ * <p>Which nodes are kept is chosen by {@link #fill(View, int[])}, either breadth first from the
+ * entry node (see {@link #breadthFirst(View, int, int)}) or most frequently visited first (see
+ * {@link #byFrequency(AtomicIntegerArray)}). Filling must not happen concurrently with lookups.
+ *
+ * <p>Lookups count hits and misses, so the cache's hit ratio can be measured for a given budget.
+ */
+final class HotNodeCache implements AutoCloseable {
+
+  static final int ABSENT = -1;
+
+  private final Arena arena = Arena.ofShared();
+  private final int dimensions;
+  private final int maxDegree;
+  private final long recordBytes;
+  private final int capacity;
+  // The slot of each node in records, or ABSENT.
+  private final MemorySegment slots;
+  // Each slot holds a vector, then its neighbor count and maxDegree neighbors.
+  private final MemorySegment records;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private int size = 0;
+
+  private HotNodeCache(int graphSize, int dimensions, int maxDegree, int capacity) {
+    this.dimensions = dimensions;
+    this.maxDegree = maxDegree;
+    this.recordBytes = recordBytes(dimensions, maxDegree);
+    this.capacity = capacity;
+    this.slots = this.arena.allocateArray(ValueLayout.JAVA_INT, graphSize);
+    this.slots.fill((byte) 0xFF);
+    this.records = this.arena.allocate(capacity * this.recordBytes, Integer.BYTES);
+  }
+
+  /** Creates a cache able to hold exactly capacity nodes. */
+  static HotNodeCache withCapacity(int graphSize, int dimensions, int maxDegree, int capacity) {
+    return new HotNodeCache(graphSize, dimensions, maxDegree, Math.min(capacity, graphSize));
+  }
+
+  /**
+   * Creates a cache holding as many nodes as fit in budgetBytes, including the per-node slot table.
+   */
+  static HotNodeCache withBudget(int graphSize, int dimensions, int maxDegree, long budgetBytes) {
+    var slotBytes = (long) graphSize * Integer.BYTES;
+    Preconditions.checkArgument(
+        budgetBytes >= slotBytes,
+        "node cache budget of %s bytes is less than the %s bytes needed to index %s nodes",
+        budgetBytes,
+        slotBytes,
+        graphSize);
+    var capacity = (budgetBytes - slotBytes) / recordBytes(dimensions, maxDegree);
+    return withCapacity(graphSize, dimensions, maxDegree, (int) Math.min(capacity, graphSize));
+  }
+
+  /**
+   * Returns the nodes within depth hops of the entry node, nearest first, stopping after limit
+   * nodes.
+   */
+  static int[] breadthFirst(View<float[]> view, int depth, int limit) {
+    var visited = new BitSet(view.size());
+    var order = new ArrayList<Integer>();
+    var frontier = new ArrayDeque<Integer>();
+    frontier.add(view.entryNode());
+    visited.set(view.entryNode());
+
+    for (int hops = 0; hops <= depth && !frontier.isEmpty() && order.size() < limit; hops++) {
+      var next = new ArrayDeque<Integer>();
+      while (!frontier.isEmpty() && order.size() < limit) {
+        var node = frontier.poll();
+        order.add(node);
+        var neighbors = view.getNeighborsIterator(node);
+        while (neighbors.hasNext()) {
+          var neighbor = neighbors.nextInt();
+          if (!visited.get(neighbor)) {
+            visited.set(neighbor);
+            next.add(neighbor);
+          }
+        }
+      }
+      frontier = next;
+    }
+
+    return order.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /** Returns the nodes that were visited at least once, most frequently visited first. */
+  static int[] byFrequency(AtomicIntegerArray visits) {
+    // Sort on the visit count in the high bits, with the node in the low bits.
+    var keys =
+        IntStream.range(0, visits.length())
+            .filter(node -> visits.get(node) > 0)
+            .mapToLong(node -> ((long) visits.get(node) << Integer.SIZE) | node)
+            .toArray();
+    Arrays.sort(keys);
+
+    var nodes = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      nodes[i] = (int) keys[keys.length - 1 - i];
+    }
+    return nodes;
+  }
+
+  /** Replaces the cached nodes with as many of nodes as fit, read through view. */
+  void fill(View<float[]> view, int[] nodes) {
+    this.slots.fill((byte) 0xFF);
+    this.size = Math.min(nodes.length, this.capacity);
+
+    var neighbors = new int[this.maxDegree];
+    for (int slot = 0; slot < this.size; slot++) {
+      var node = nodes[slot];
+      var offset = slot * this.recordBytes;
+      MemorySegment.copy(
+          view.getVector(node), 0, this.records, ValueLayout.JAVA_FLOAT, offset, this.dimensions);
+
+      var count = 0;
+      var it = view.getNeighborsIterator(node);
+      while (it.hasNext()) {
+        neighbors[count++] = it.nextInt();
+      }
+      offset += (long) this.dimensions * Float.BYTES;
+      this.records.set(ValueLayout.JAVA_INT, offset, count);
+      MemorySegment.copy(
+          neighbors, 0, this.records, ValueLayout.JAVA_INT, offset + Integer.BYTES, count);
+
+      this.slots.setAtIndex(ValueLayout.JAVA_INT, node, slot);
+    }
+  }
+
+  /** Returns the node's slot, or ABSENT if it isn't cached, counting the lookup. */
+  int slot(int node) {
+    var slot = this.slots.getAtIndex(ValueLayout.JAVA_INT, node);
+    (slot == ABSENT ? this.misses : this.hits).increment();
+    return slot;
+  }
+
+  /** Returns whether the node is cached, without counting the lookup. */
+  boolean contains(int node) {
+    return this.slots.getAtIndex(ValueLayout.JAVA_INT, node) != ABSENT;
+  }
+
+  float[] vector(int slot) {
+    var vector = new float[this.dimensions];
+    MemorySegment.copy(
+        this.records, ValueLayout.JAVA_FLOAT, slot * this.recordBytes, vector, 0, this.dimensions);
+    return vector;
+  }
+
+  /** Copies the slot's neighbors into neighbors, returning how many there are. */
+  int neighbors(int slot, int[] neighbors) {
+    var offset = slot * this.recordBytes + (long) this.dimensions * Float.BYTES;
+    var count = this.records.get(ValueLayout.JAVA_INT, offset);
+    MemorySegment.copy(
+        this.records, ValueLayout.JAVA_INT, offset + Integer.BYTES, neighbors, 0, count);
+    return count;
+  }
+
+  /** The number of nodes that fit in the cache. */
+  int capacity() {
+    return this.capacity;
+  }
+
+  /** The number of nodes cached. */
+  int size() {
+    return this.size;
+  }
+
+  long byteSize() {
+    return this.slots.byteSize() + this.records.byteSize();
+  }
+
+  long hits() {
+    return this.hits.sum();
+  }
+
+  long misses() {
+    return this.misses.sum();
+  }
+
+  void resetCounters() {
+    this.hits.reset();
+    this.misses.reset();
+  }
+
+  @Override
+  public void close() {
+    if (this.arena.scope().isAlive()) {
+      this.arena.close();
+    }
+  }
+
+  private static long recordBytes(int dimensions, int maxDegree) {
+    return (long) dimensions * Float.BYTES + (maxDegree + 1L) * Integer.BYTES;
+  }
+}
@@ -53,10 +53,27 @@ public interface Index extends AutoCloseable {
       };
     }
 
-    record BuildSummary(List<BuildPhase> phases) {}
+    record BuildSummary(List<BuildPhase> phases, List<Merge> merges) {
+
+      public BuildSummary(List<BuildPhase> phases) {
+        this(phases, List.of());
+      }
+    }
 
     record BuildPhase(String description, Duration duration) {}
 
+    /**
+     * A merge of segments during the build, and how much of its duration was spent merging vectors
+     * (e.g. rebuilding a graph).
+     */
+    record Merge(
+        int segments,
+        int documents,
+        Bytes inputSize,
+        Bytes outputSize,
+        Duration duration,
+        Duration vectorsDuration) {}
+
     record Parameters(String provider, String type, Map<String, String> buildParameters) {
 
       public static Parameters parse(String description) {
@@ -84,9 +101,85 @@ public interface Index extends AutoCloseable {
     }
   }
 
+  /**
+   * A Live index is queried while vectors are being inserted into and deleted from it, rather than
+   * built once and then queried.
+   */
+  interface Live extends Index {
+
+    /** Inserts the train vector with the given id. May be called concurrently with any method. */
+    void insert(int id) throws IOException;
+
+    /** Deletes the vector with the given id, which must have been inserted. */
+    void delete(int id) throws IOException;
+
+    /**
+     * Queries the k nearest neighbors of the vector among the inserted vectors that haven't been
+     * deleted, clearing the results and then filling them in order of decreasing similarity.
+     */
+    void query(float[] vector, int k, QueryResults results) throws IOException;
+
+    static Live fromParameters(
+        Dataset dataset,
+        String provider,
+        String type,
+        Map<String, String> buildParameters,
+        Map<String, String> queryParameters)
+        throws IOException {
+      var parameters = new Querier.Parameters(provider, type, buildParameters, queryParameters);
+
+      return switch (parameters.provider()) {
+        case "jvector" -> JVectorIndex.Live.create(
+            dataset.train(), dataset.similarityFunction(), parameters);
+        default -> throw new RuntimeException(
+            "index provider does not support live workloads: " + parameters.provider());
+      };
+    }
+  }
+
   interface Querier extends Index {
 
-    List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException;
+    /**
+     * Queries the k nearest neighbors of the vector, clearing the results and then filling them in
+     * order of decreasing similarity.
+     */
+    void query(float[] vector, int k, boolean ensureIds, QueryResults results) throws IOException;
+
+    /**
+     * Queries the k nearest neighbors of the vector among the vectors matching the filter, clearing
+     * the results and then filling them in order of decreasing similarity.
+     */
+    void query(
+        float[] vector, int k, boolean ensureIds, AttributeFilter filter, QueryResults results)
+        throws IOException;
+
+    /**
+     * Queries a batch of vectors, filling results[i] with the results for vectors[i]. Any results
+     * buffers beyond the number of vectors are left untouched.
+     *
+     * <p>By default queries each vector in turn, implementations may override this to share work
+     * across the batch.
+     */
+    default void queryBatch(float[][] vectors, int k, boolean ensureIds, QueryResults[] results)
+        throws IOException {
+      Preconditions.checkArgument(
+          results.length >= vectors.length, "expected a query results buffer per vector");
+      for (int i = 0; i < vectors.length; i++) {
+        query(vectors[i], k, ensureIds, results[i]);
+      }
+    }
+
+    /**
+     * Called once warmup queries have finished and before the test queries start, while no queries
+     * are running. Implementations may use it to e.g. fill caches based on what warmup queries
+     * accessed, or reset counters so that they only cover the test.
+     */
+    default void warmupComplete() throws Exception {}
+
+    /** Returns implementation specific statistics about the queries run so far, by name. */
+    default Map<String, Object> stats() {
+      return Map.of();
+    }
 
     static Querier fromDescription(Dataset dataset, Path indexesPath, String description)
         throws IOException {
@@ -112,7 +205,7 @@ public interface Index extends AutoCloseable {
 
       return switch (parameters.provider) {
         case "lucene" -> LuceneIndex.Querier.create(
-            indexesPath.resolve(dataset.name()), parameters);
+            datasetPath, dataset.train(), dataset.similarityFunction(), parameters);
         case "jvector" -> JVectorIndex.Querier.create(
             datasetPath, dataset.similarityFunction(), dataset.dimensions(), parameters);
         default -> throw new RuntimeException("unknown index provider: " + parameters.provider);
@@ -3,9 +3,12 @@ package com.github.kevindrosendahl.javaannbench.index;
 import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
 import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.PerThread;
 import com.github.kevindrosendahl.javaannbench.util.Records;
+import com.github.kevindrosendahl.javaannbench.util.iouring.IoUringReaderSupplier;
 import com.google.common.base.Preconditions;
-import com.indeed.util.mmap.MMapBuffer;
 import io.github.jbellis.jvector.disk.CachingGraphIndex;
 import io.github.jbellis.jvector.disk.OnDiskGraphIndex;
 import io.github.jbellis.jvector.disk.RandomAccessReader;
@@ -15,11 +18,12 @@ import io.github.jbellis.jvector.graph.GraphIndex.View;
 import io.github.jbellis.jvector.graph.GraphIndexBuilder;
 import io.github.jbellis.jvector.graph.GraphSearcher;
 import io.github.jbellis.jvector.graph.ListRandomAccessVectorValues;
-import io.github.jbellis.jvector.graph.NeighborSimilarity;
 import io.github.jbellis.jvector.graph.NeighborSimilarity.ExactScoreFunction;
 import io.github.jbellis.jvector.graph.NeighborSimilarity.ReRanker;
 import io.github.jbellis.jvector.graph.NeighborSimilarity.ScoreFunction;
+import io.github.jbellis.jvector.graph.NodesIterator;
 import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.SearchResult;
 import io.github.jbellis.jvector.pq.CompressedVectors;
 import io.github.jbellis.jvector.pq.ProductQuantization;
 import io.github.jbellis.jvector.util.Bits;
@@ -27,8 +31,11 @@ import io.github.jbellis.jvector.vector.VectorEncoding;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -36,10 +43,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.apache.commons.io.FileUtils;
@@ -51,7 +65,56 @@ public class JVectorIndex {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(JVectorIndex.class);
   private static final String GRAPH_FILE = "graph.bin";
+  private static final String CHECKPOINT_FILE = "checkpoint.bin";
   private static final String COMPRESSED_VECTOR_FILE_FORMAT = "compressed-vectors-%s.bin";
+  // ProductQuantization.compute trains on at most 128k vectors.
+  private static final int DEFAULT_PQ_TRAINING_SAMPLE = 128000;
+  private static final int PQ_ENCODE_CHUNK_VECTORS = 64 * 1024;
+  private static final int IO_URING_ENTRIES = 256;
+  // 16 MiB of cached pages per query thread.
+  private static final int IO_URING_CACHE_PAGES = 4096;
+  // The graph header is its size, dimensions, entry node, and max degree.
+  private static final long GRAPH_HEADER_BYTES = 4 * Integer.BYTES;
+  // By default nodes within this many hops of the entry node are cached, as CachingGraphIndex does.
+  private static final int DEFAULT_NODE_CACHE_DEPTH = 3;
+
+  private enum GraphReader {
+    MMAP,
+    IO_URING,
+    IO_URING_PREFETCH;
+
+    static GraphReader parse(String description) {
+      return switch (description) {
+        case "mmap" -> MMAP;
+        case "io_uring" -> IO_URING;
+        case "io_uring_prefetch" -> IO_URING_PREFETCH;
+        default -> throw new RuntimeException(
+            "unexpected JVECTOR_GRAPH_READER "
+                + description
+                + ", expected mmap, io_uring, or io_uring_prefetch");
+      };
+    }
+  }
+
+  private enum NodeCacheFill {
+    JVECTOR,
+    NONE,
+    BFS,
+    FREQUENCY;
+
+    static NodeCacheFill parse(String description) {
+      return switch (description) {
+        case "jvector" -> JVECTOR;
+        case "none" -> NONE;
+        case "bfs" -> BFS;
+        case "frequency" -> FREQUENCY;
+        default -> throw new RuntimeException(
+            "unexpected JVECTOR_NODE_CACHE "
+                + description
+                + ", expected jvector, none, bfs, or frequency");
+      };
+    }
+  }
 
   public record BuildParameters(int M, int beamWidth, float neighborOverflow, float alpha) {}
 
@@ -61,26 +124,50 @@ public class JVectorIndex {
 
     private final Path indexPath;
     private final RandomAccessVectorValues<float[]> vectors;
+    private final MMapRandomAccessVectorValues sharedVectors;
     private final GraphIndexBuilder<float[]> indexBuilder;
+    private final VectorSimilarityFunction similarityFunction;
     private final BuildParameters buildParams;
     private final int numThreads;
+    private final ByteOrder graphByteOrder;
+    private final List<Integer> pqFactors;
+    private final int pqTrainingSample;
+    private final int checkpointNodes;
+    private final boolean resume;
+    private final long commitFsyncBytes;
 
     private Builder(
         Path indexPath,
         RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues sharedVectors,
         GraphIndexBuilder<float[]> indexBuilder,
+        VectorSimilarityFunction similarityFunction,
         BuildParameters buildParams,
-        int numThreads) {
+        int numThreads,
+        ByteOrder graphByteOrder,
+        List<Integer> pqFactors,
+        int pqTrainingSample,
+        int checkpointNodes,
+        boolean resume,
+        long commitFsyncBytes) {
       this.indexPath = indexPath;
       this.vectors = vectors;
+      this.sharedVectors = sharedVectors;
       this.indexBuilder = indexBuilder;
+      this.similarityFunction = similarityFunction;
       this.buildParams = buildParams;
       this.numThreads = numThreads;
+      this.graphByteOrder = graphByteOrder;
+      this.pqFactors = pqFactors;
+      this.pqTrainingSample = pqTrainingSample;
+      this.checkpointNodes = checkpointNodes;
+      this.resume = resume;
+      this.commitFsyncBytes = commitFsyncBytes;
     }
 
     public static Index.Builder create(
         Path indexesPath,
-        RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues vectors,
         SimilarityFunction similarityFunction,
         Parameters parameters)
         throws IOException {
@@ -99,9 +186,12 @@ public class JVectorIndex {
             case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
           };
 
+      // Have the builder read vectors into reused per-thread buffers rather than allocating a
+      // float[] for every comparison.
+      var sharedVectors = vectors.shared();
       var indexBuilder =
           new GraphIndexBuilder<>(
-              vectors,
+              sharedVectors,
               VectorEncoding.FLOAT32,
               vectorSimilarityFunction,
               buildParams.M,
@@ -115,10 +205,67 @@ public class JVectorIndex {
               .orElseGet(
                   () -> new SystemInfo().getHardware().getProcessor().getPhysicalProcessorCount());
 
+      // jvector writes graphs big endian. Writing them little endian instead lets queries on little
+      // endian machines read vectors and neighbors without swapping bytes.
+      var graphByteOrder =
+          Optional.ofNullable(System.getenv("JVECTOR_GRAPH_BYTE_ORDER"))
+              .map(
+                  order ->
+                      switch (order) {
+                        case "big" -> ByteOrder.BIG_ENDIAN;
+                        case "little" -> ByteOrder.LITTLE_ENDIAN;
+                        default -> throw new RuntimeException("unexpected byte order " + order);
+                      })
+              .orElse(ByteOrder.BIG_ENDIAN);
+
+      // The pqFactors to build compressed vectors for as part of the build, so that queries using
+      // them don't have to.
+      var pqFactors =
+          Optional.ofNullable(System.getenv("JVECTOR_PQ_FACTORS"))
+              .map(factors -> Arrays.stream(factors.split(",")).map(Integer::parseInt).toList())
+              .orElse(List.of());
+      var pqTrainingSample =
+          Optional.ofNullable(System.getenv("JVECTOR_PQ_TRAINING_SAMPLE"))
+              .map(Integer::parseInt)
+              .orElse(DEFAULT_PQ_TRAINING_SAMPLE);
+
+      // Checkpoint the graph every this many nodes, so that an interrupted build can resume from
+      // the last checkpoint rather than starting over. 0 disables checkpoints.
+      var checkpointNodes =
+          Optional.ofNullable(System.getenv("JVECTOR_CHECKPOINT_NODES"))
+              .map(Integer::parseInt)
+              .orElse(0);
+      Preconditions.checkArgument(checkpointNodes >= 0, "JVECTOR_CHECKPOINT_NODES is negative");
+      var resume =
+          Optional.ofNullable(System.getenv("JVECTOR_RESUME"))
+              .map(Boolean::parseBoolean)
+              .orElse(true);
+
+      // Sync the graph file every this many bytes while committing (e.g. 256MiB), rather than
+      // leaving all of the dirty pages for the OS to flush after the build.
+      var commitFsyncBytes =
+          Optional.ofNullable(System.getenv("JVECTOR_COMMIT_FSYNC"))
+              .map(Bytes::parse)
+              .map(Bytes::toBytes)
+              .orElse(0L);
+
       var path = indexesPath.resolve(buildDescription(buildParams));
       Files.createDirectories(path);
 
-      return new JVectorIndex.Builder(path, vectors, indexBuilder, buildParams, numThreads);
+      return new JVectorIndex.Builder(
+          path,
+          vectors,
+          sharedVectors,
+          indexBuilder,
+          vectorSimilarityFunction,
+          buildParams,
+          numThreads,
+          graphByteOrder,
+          pqFactors,
+          pqTrainingSample,
+          checkpointNodes,
+          resume,
+          commitFsyncBytes);
     }
 
     @Override
@@ -126,19 +273,59 @@ public class JVectorIndex {
       var pool = new ForkJoinPool(this.numThreads);
       var size = this.vectors.size();
 
+      var threadVectors = ThreadLocal.withInitial(this.sharedVectors::copy);
+      var graph = this.indexBuilder.getGraph();
+      var phases = new ArrayList<BuildPhase>();
+
+      // A checkpoint only exists if a previous build of this index was interrupted.
+      var checkpointPath = this.indexPath.resolve(CHECKPOINT_FILE);
+      var resumeFrom = 0;
+      var checkpointedBuild = Duration.ZERO;
+      if (Files.exists(checkpointPath)) {
+        if (this.resume) {
+          var restoreStart = Instant.now();
+          var restored =
+              GraphCheckpoint.restore(
+                  checkpointPath, graph, size, this.buildParams.neighborOverflow);
+          resumeFrom = restored.nodes();
+          checkpointedBuild = restored.buildDuration();
+          LOGGER.info("resuming build from checkpoint of {} nodes", resumeFrom);
+          phases.add(new BuildPhase("checkpointed-build", checkpointedBuild));
+          phases.add(new BuildPhase("restore", Duration.between(restoreStart, Instant.now())));
+        } else {
+          LOGGER.info("JVECTOR_RESUME is false, discarding checkpoint {}", checkpointPath);
+          Files.delete(checkpointPath);
+        }
+      }
+
+      // Nodes are added in batches between checkpoints, so that a checkpoint can cover every node
+      // below its batch's end. Build threads only wait at batch boundaries for the batch's
+      // stragglers, checkpoints themselves are written in the background.
+      var batchNodes = this.checkpointNodes > 0 ? this.checkpointNodes : size;
       var buildStart = Instant.now();
-      try (var progress = ProgressBar.create("building", size)) {
-        pool.submit(
-                () -> {
-                  IntStream.range(0, size)
-                      .parallel()
-                      .forEach(
-                          i -> {
-                            this.indexBuilder.addGraphNode(i, this.vectors);
-                            progress.inc();
-                          });
-                })
-            .join();
+      try (var progress = ProgressBar.create("building", size);
+          var checkpoints = new GraphCheckpoint.Writer(checkpointPath, graph, size)) {
+        progress.incTo(resumeFrom);
+        for (int batchStart = resumeFrom; batchStart < size; batchStart += batchNodes) {
+          var batch = IntStream.range(batchStart, Math.min(size, batchStart + batchNodes));
+          pool.submit(
+                  () -> {
+                    batch
+                        .parallel()
+                        .forEach(
+                            i -> {
+                              this.indexBuilder.addGraphNode(i, threadVectors.get());
+                              progress.inc();
+                            });
+                  })
+              .join();
+
+          var batchEnd = batchStart + batchNodes;
+          if (this.checkpointNodes > 0 && batchEnd < size) {
+            checkpoints.checkpoint(
+                batchEnd, checkpointedBuild.plus(Duration.between(buildStart, Instant.now())));
+          }
+        }
       }
 
       this.indexBuilder.cleanup();
@@ -146,24 +333,64 @@ public class JVectorIndex {
 
       LOGGER.info("finished building index, committing");
       var commitStart = Instant.now();
-      try (var output =
-          new DataOutputStream(
-              new BufferedOutputStream(
-                  Files.newOutputStream(this.indexPath.resolve(GRAPH_FILE))))) {
-        var graph = this.indexBuilder.getGraph();
-        OnDiskGraphIndex.write(graph, vectors, output);
-      }
+      GraphWriter.write(
+          this.indexPath.resolve(GRAPH_FILE),
+          graph,
+          this.sharedVectors,
+          this.graphByteOrder,
+          this.commitFsyncBytes,
+          pool);
       var commitEnd = Instant.now();
+      // The graph is committed, so there's nothing left to resume.
+      Files.deleteIfExists(checkpointPath);
+
+      phases.add(new BuildPhase("build", Duration.between(buildStart, buildEnd)));
+      phases.add(new BuildPhase("commit", Duration.between(commitStart, commitEnd)));
+
+      for (var pqFactor : this.pqFactors) {
+        phases.addAll(
+            writeCompressedVectors(
+                this.indexPath.resolve(String.format(COMPRESSED_VECTOR_FILE_FORMAT, pqFactor)),
+                pqFactor,
+                this.pqTrainingSample,
+                size,
+                new PerThread<>(this.sharedVectors::copy),
+                this.similarityFunction,
+                pool));
+      }
 
-      return new BuildSummary(
-          List.of(
-              new BuildPhase("build", Duration.between(buildStart, buildEnd)),
-              new BuildPhase("commit", Duration.between(commitStart, commitEnd))));
+      return new BuildSummary(phases);
     }
 
     @Override
     public String description() {
-      return buildDescription(this.buildParams);
+      return buildDescription(this.buildParams) + settingsString();
+    }
+
+    /**
+     * Describes the build settings configured through the environment that differ from their
+     * defaults, so that builds with different settings can be told apart in reports.
+     */
+    private String settingsString() {
+      var settings = new ArrayList<String>();
+      if (this.graphByteOrder != ByteOrder.BIG_ENDIAN) {
+        settings.add("graphByteOrder:little");
+      }
+      if (!this.pqFactors.isEmpty()) {
+        settings.add(
+            "pqFactors:"
+                + this.pqFactors.stream().map(String::valueOf).collect(Collectors.joining(",")));
+      }
+      if (this.pqTrainingSample != DEFAULT_PQ_TRAINING_SAMPLE) {
+        settings.add("pqTrainingSample:" + this.pqTrainingSample);
+      }
+      if (this.checkpointNodes != 0) {
+        settings.add("checkpointNodes:" + this.checkpointNodes);
+      }
+      if (this.commitFsyncBytes != 0) {
+        settings.add("commitFsyncBytes:" + this.commitFsyncBytes);
+      }
+      return settings.isEmpty() ? "" : "_" + String.join("-", settings);
     }
 
     @Override
@@ -188,6 +415,8 @@ public class JVectorIndex {
     private final VectorSimilarityFunction similarityFunction;
     private final BuildParameters buildParams;
     private final QueryParameters queryParams;
+    private final String settings;
+    private final PerThread<ThreadSearcher> searchers;
 
     public Querier(
         ReaderSupplier readerSupplier,
@@ -195,13 +424,23 @@ public class JVectorIndex {
         Optional<CompressedVectors> compressedVectors,
         VectorSimilarityFunction similarityFunction,
         BuildParameters buildParams,
-        QueryParameters queryParams) {
+        QueryParameters queryParams,
+        String settings) {
       this.readerSupplier = readerSupplier;
       this.graph = graph;
       this.compressedVectors = compressedVectors;
       this.similarityFunction = similarityFunction;
       this.buildParams = buildParams;
       this.queryParams = queryParams;
+      this.settings = settings;
+      // GraphSearchers reset their scratch state at the start of each search, so each thread keeps
+      // a view and searcher for its queries rather than allocating new ones per query.
+      this.searchers =
+          new PerThread<>(
+              () -> {
+                var view = this.graph.getView();
+                return new ThreadSearcher(view, new GraphSearcher.Builder<>(view).build());
+              });
     }
 
     public static Index.Querier create(
@@ -232,46 +471,182 @@ public class JVectorIndex {
             case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
           };
 
-      var readerSupplier = new MMapReaderSupplier(path);
+      // mmap reads the graph through the page cache, io_uring reads it with explicit reads so that
+      // misses don't block on page faults, and io_uring_prefetch additionally reads the neighbors
+      // of each expanded node in one submission before they're scored.
+      var graphReader =
+          Optional.ofNullable(System.getenv("JVECTOR_GRAPH_READER"))
+              .map(GraphReader::parse)
+              .orElse(GraphReader.MMAP);
+      var byteOrder = graphByteOrder(path, dimensions);
+
+      ReaderSupplier readerSupplier =
+          switch (graphReader) {
+            case MMAP -> new MMapReaderSupplier(path, byteOrder);
+            case IO_URING, IO_URING_PREFETCH -> new IoUringReaderSupplier(
+                path, byteOrder, IO_URING_ENTRIES, IO_URING_CACHE_PAGES);
+          };
       var onDiskGraph = new OnDiskGraphIndex<float[]>(readerSupplier, 0);
-      var cachingGraph = new CachingGraphIndex(onDiskGraph);
+
+      // With PQ, neighbors are scored from the compressed vectors, so their records are only read
+      // if they're expanded, and prefetching each neighborhood would mostly read unused records.
+      var prefetch = graphReader == GraphReader.IO_URING_PREFETCH && queryParams.pqFactor <= 0;
+      if (graphReader == GraphReader.IO_URING_PREFETCH && !prefetch) {
+        LOGGER.info("scoring with pqFactor {}, not prefetching neighbors", queryParams.pqFactor);
+      }
+
+      // By default graphs read with mmap are cached by jvector's CachingGraphIndex. It reads
+      // through
+      // the OnDiskGraphIndex, so graphs read with io_uring cache the same nodes in a HotNodeCache.
+      var nodeCacheSettings = NodeCacheSettings.fromEnvironment(graphReader);
+      Preconditions.checkArgument(
+          nodeCacheSettings.fill != NodeCacheFill.JVECTOR || graphReader == GraphReader.MMAP,
+          "JVECTOR_NODE_CACHE jvector can only cache graphs read with mmap");
+
+      var nodeCache = nodeCache(onDiskGraph, dimensions, nodeCacheSettings);
+      IntPredicate cached = nodeCache.isPresent() ? nodeCache.get().cache::contains : node -> false;
+      GraphIndex<float[]> graph =
+          readerSupplier instanceof IoUringReaderSupplier ioUringSupplier
+              ? new IoUringGraphIndex(onDiskGraph, ioUringSupplier, dimensions, prefetch, cached)
+              : onDiskGraph;
+      if (nodeCacheSettings.fill == NodeCacheFill.JVECTOR) {
+        graph = new CachingGraphIndex(onDiskGraph);
+      }
+      if (nodeCache.isPresent()) {
+        graph = new NodeCachingGraphIndex(graph, nodeCache.get().cache, nodeCache.get().profile);
+      }
+
+      var settings = new ArrayList<String>();
+      if (graphReader != GraphReader.MMAP) {
+        settings.add("graphReader:" + graphReader.name().toLowerCase());
+      }
+      settings.addAll(nodeCacheSettings.describe(graphReader));
+
       var compressedVectors =
           compressedVectors(
-              indexPath, dimensions, queryParams.pqFactor, cachingGraph, vectorSimilarityFunction);
+              indexPath, dimensions, queryParams.pqFactor, graph, vectorSimilarityFunction);
 
       return new JVectorIndex.Querier(
           readerSupplier,
-          cachingGraph,
+          graph,
           compressedVectors,
           vectorSimilarityFunction,
           buildParams,
-          queryParams);
+          queryParams,
+          settings.isEmpty() ? "" : "_" + String.join("-", settings));
     }
 
     @Override
-    public List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException {
-      var view = this.graph.getView();
+    public void query(float[] vector, int k, boolean ensureIds, QueryResults results)
+        throws IOException {
+      var searcher = this.searchers.acquire();
+      try {
+        search(searcher.searcher, searcher.view, vector, k, Bits.ALL, results);
+      } finally {
+        this.searchers.release(searcher);
+      }
+    }
 
-      NeighborSimilarity.ExactScoreFunction scoreFunction =
-          i -> this.similarityFunction.compare(vector, view.getVector(i));
+    @Override
+    public void query(
+        float[] vector, int k, boolean ensureIds, AttributeFilter filter, QueryResults results)
+        throws IOException {
+      // Graph ordinals are the vectors' ids.
+      Bits acceptOrds =
+          new Bits() {
+            @Override
+            public boolean get(int ordinal) {
+              return filter.matches(ordinal);
+            }
+
+            @Override
+            public int length() {
+              return graph.size();
+            }
+          };
 
-      var searcher = new GraphSearcher.Builder<>(view).build();
-      var querySimilarity = querySimilarity(vector, view);
-      var results =
-          searcher.search(
-              querySimilarity.scoreFunction,
-              querySimilarity.reRanker,
-              queryParams.numCandidates,
-              Bits.ALL);
+      var searcher = this.searchers.acquire();
+      try {
+        search(searcher.searcher, searcher.view, vector, k, acceptOrds, results);
+      } finally {
+        this.searchers.release(searcher);
+      }
+    }
 
-      return Arrays.stream(results.getNodes())
-          .map(nodeScore -> nodeScore.node)
-          .limit(k)
-          .collect(Collectors.toList());
+    /**
+     * Searches the batch with one view and searcher, rather than acquiring them for each query, so
+     * the batch's queries also run back to back on the same searcher's scratch state.
+     */
+    @Override
+    public void queryBatch(float[][] vectors, int k, boolean ensureIds, QueryResults[] results)
+        throws IOException {
+      Preconditions.checkArgument(
+          results.length >= vectors.length, "expected a query results buffer per vector");
+
+      var searcher = this.searchers.acquire();
+      try {
+        for (int i = 0; i < vectors.length; i++) {
+          search(searcher.searcher, searcher.view, vectors[i], k, Bits.ALL, results[i]);
+        }
+      } finally {
+        this.searchers.release(searcher);
+      }
+    }
+
+    @Override
+    public void warmupComplete() throws Exception {
+      if (this.graph instanceof NodeCachingGraphIndex cachingGraph) {
+        cachingGraph.fillFromProfile();
+        cachingGraph.cache.resetCounters();
+      }
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+      if (!(this.graph instanceof NodeCachingGraphIndex cachingGraph)) {
+        return Map.of();
+      }
+
+      var cache = cachingGraph.cache;
+      var lookups = cache.hits() + cache.misses();
+      var stats = new LinkedHashMap<String, Object>();
+      stats.put("node cache nodes", cache.size());
+      stats.put("node cache size", Bytes.ofBytes(cache.byteSize()));
+      stats.put("node cache hits", cache.hits());
+      stats.put("node cache misses", cache.misses());
+      stats.put(
+          "node cache hit ratio", lookups == 0 ? Double.NaN : cache.hits() / (double) lookups);
+      return stats;
+    }
+
+    private void search(
+        GraphSearcher<float[]> searcher,
+        View<float[]> view,
+        float[] vector,
+        int k,
+        Bits acceptOrds,
+        QueryResults results) {
+      var querySimilarity = querySimilarity(vector, view);
+      var nodes =
+          searcher
+              .search(
+                  querySimilarity.scoreFunction,
+                  querySimilarity.reRanker,
+                  queryParams.numCandidates,
+                  acceptOrds)
+              .getNodes();
+
+      results.clear();
+      for (int i = 0; i < Math.min(k, nodes.length); i++) {
+        results.add(nodes[i].node, nodes[i].score);
+      }
     }
 
     @Override
     public void close() throws Exception {
+      for (var searcher : this.searchers.all()) {
+        searcher.view.close();
+      }
       this.graph.close();
       this.readerSupplier.close();
     }
@@ -279,15 +654,18 @@ public class JVectorIndex {
     @Override
     public String description() {
       return String.format(
-          "jvector_vamana_M:%s-beamWidth:%s-neighborOverflow:%s-alpha:%s_numCandidates:%s-pqFactor:%s",
-          buildParams.M,
-          buildParams.beamWidth,
-          buildParams.neighborOverflow,
-          buildParams.alpha,
-          queryParams.numCandidates,
-          queryParams.pqFactor);
+              "jvector_vamana_M:%s-beamWidth:%s-neighborOverflow:%s-alpha:%s_numCandidates:%s-pqFactor:%s",
+              buildParams.M,
+              buildParams.beamWidth,
+              buildParams.neighborOverflow,
+              buildParams.alpha,
+              queryParams.numCandidates,
+              queryParams.pqFactor)
+          + this.settings;
     }
 
+    private record ThreadSearcher(View<float[]> view, GraphSearcher<float[]> searcher) {}
+
     private record QuerySimilarity(ScoreFunction scoreFunction, ReRanker<float[]> reRanker) {}
 
     private QuerySimilarity querySimilarity(float[] vector, View<float[]> view) {
@@ -302,34 +680,149 @@ public class JVectorIndex {
           (i, vectors) -> this.similarityFunction.compare(vector, vectors.get(i)));
     }
 
-    private static RandomAccessVectorValues<float[]> graphViewVectors(
-        View<float[]> view, int dimensions) {
-      return new RandomAccessVectorValues<float[]>() {
-        @Override
-        public int size() {
-          return view.size();
-        }
+    /** Reads vectors through a graph view, which must be closed once they've been read. */
+    private record ViewVectors(View<float[]> view, int dimension)
+        implements RandomAccessVectorValues<float[]> {
 
-        @Override
-        public int dimension() {
-          return dimensions;
-        }
+      @Override
+      public int size() {
+        return this.view.size();
+      }
+
+      @Override
+      public float[] vectorValue(int i) {
+        return this.view.getVector(i);
+      }
+
+      @Override
+      public boolean isValueShared() {
+        return false;
+      }
+
+      @Override
+      public RandomAccessVectorValues<float[]> copy() {
+        return this;
+      }
+    }
 
-        @Override
-        public float[] vectorValue(int i) {
-          return view.getVector(i);
+    private record NodeCache(HotNodeCache cache, boolean profile) {}
+
+    /**
+     * The node cache configured by JVECTOR_NODE_CACHE, which is one of:
+     *
+     * <ul>
+     *   <li>jvector (the default with mmap): jvector's CachingGraphIndex
+     *   <li>bfs (the default with io_uring): nodes within JVECTOR_NODE_CACHE_DEPTH hops of the
+     *       entry node
+     *   <li>frequency: the nodes most visited by warmup queries, filled once warmup completes
+     *   <li>none: no cache
+     * </ul>
+     *
+     * <p>JVECTOR_NODE_CACHE_BYTES bounds the bfs or frequency cache's off-heap size (e.g. 512MiB),
+     * and is required when filling by frequency.
+     */
+    private record NodeCacheSettings(NodeCacheFill fill, Optional<Bytes> budget, int depth) {
+
+      static NodeCacheSettings fromEnvironment(GraphReader graphReader) {
+        var fill =
+            Optional.ofNullable(System.getenv("JVECTOR_NODE_CACHE"))
+                .map(NodeCacheFill::parse)
+                .orElse(defaultFill(graphReader));
+        var budget =
+            Optional.ofNullable(System.getenv("JVECTOR_NODE_CACHE_BYTES")).map(Bytes::parse);
+        var depth =
+            Optional.ofNullable(System.getenv("JVECTOR_NODE_CACHE_DEPTH"))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_NODE_CACHE_DEPTH);
+        return new NodeCacheSettings(fill, budget, depth);
+      }
+
+      static NodeCacheFill defaultFill(GraphReader graphReader) {
+        return graphReader == GraphReader.MMAP ? NodeCacheFill.JVECTOR : NodeCacheFill.BFS;
+      }
+
+      /** Describes the settings that differ from the defaults for the graph reader. */
+      List<String> describe(GraphReader graphReader) {
+        var settings = new ArrayList<String>();
+        if (this.fill != defaultFill(graphReader)) {
+          settings.add("nodeCache:" + this.fill.name().toLowerCase());
+        }
+        if (this.fill == NodeCacheFill.BFS || this.fill == NodeCacheFill.FREQUENCY) {
+          this.budget.ifPresent(bytes -> settings.add("nodeCacheBytes:" + bytes.toBytes()));
         }
+        if (this.fill == NodeCacheFill.BFS && this.depth != DEFAULT_NODE_CACHE_DEPTH) {
+          settings.add("nodeCacheDepth:" + this.depth);
+        }
+        return settings;
+      }
+    }
 
-        @Override
-        public boolean isValueShared() {
-          return false;
+    /** Creates the HotNodeCache for bfs or frequency settings, none for the other settings. */
+    private static Optional<NodeCache> nodeCache(
+        OnDiskGraphIndex<float[]> graph, int dimensions, NodeCacheSettings settings)
+        throws IOException {
+      var fill = settings.fill;
+      if (fill == NodeCacheFill.NONE || fill == NodeCacheFill.JVECTOR) {
+        return Optional.empty();
+      }
+
+      var budget = settings.budget;
+      var depth = settings.depth;
+      Preconditions.checkArgument(
+          fill != NodeCacheFill.FREQUENCY || budget.isPresent(),
+          "JVECTOR_NODE_CACHE_BYTES must be set to fill the node cache by frequency");
+
+      if (fill == NodeCacheFill.FREQUENCY) {
+        var cache =
+            HotNodeCache.withBudget(
+                graph.size(), dimensions, graph.maxDegree(), budget.get().toBytes());
+        LOGGER.info(
+            "node cache will hold the {} nodes most visited during warmup", cache.capacity());
+        return Optional.of(new NodeCache(cache, true));
+      }
+
+      try (var view = graph.getView()) {
+        HotNodeCache cache;
+        int[] nodes;
+        if (budget.isPresent()) {
+          cache =
+              HotNodeCache.withBudget(
+                  graph.size(), dimensions, graph.maxDegree(), budget.get().toBytes());
+          nodes = HotNodeCache.breadthFirst(view, depth, cache.capacity());
+        } else {
+          nodes = HotNodeCache.breadthFirst(view, depth, Integer.MAX_VALUE);
+          cache =
+              HotNodeCache.withCapacity(graph.size(), dimensions, graph.maxDegree(), nodes.length);
         }
 
-        @Override
-        public RandomAccessVectorValues<float[]> copy() {
-          return this;
+        cache.fill(view, nodes);
+        LOGGER.info(
+            "cached {} nodes within {} hops of the entry node in {}",
+            cache.size(),
+            depth,
+            Bytes.ofBytes(cache.byteSize()));
+        return Optional.of(new NodeCache(cache, false));
+      }
+    }
+
+    /**
+     * Graphs may be written in either byte order, detect which by finding the dimensions in the
+     * header, which starts with the graph's size and then its dimensions.
+     */
+    private static ByteOrder graphByteOrder(Path path, int dimensions) throws IOException {
+      var header = ByteBuffer.allocate(2 * Integer.BYTES);
+      try (var channel = FileChannel.open(path)) {
+        while (header.hasRemaining() && channel.read(header) >= 0) {}
+      }
+
+      for (var order : List.of(ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN)) {
+        if (header.order(order).getInt(Integer.BYTES) == dimensions) {
+          return order;
         }
-      };
+      }
+
+      throw new RuntimeException(
+          String.format("graph at %s does not have the expected %s dimensions", path, dimensions));
     }
 
     private static Optional<CompressedVectors> compressedVectors(
@@ -346,90 +839,561 @@ public class JVectorIndex {
       var compressedVectorsFile =
           indexPath.resolve(String.format(COMPRESSED_VECTOR_FILE_FORMAT, pqFactor));
       if (compressedVectorsFile.toFile().exists()) {
-        try (var reader = new MMapReaderSupplier(compressedVectorsFile)) {
+        try (var reader = new MMapReaderSupplier(compressedVectorsFile, ByteOrder.BIG_ENDIAN)) {
           return Optional.of(CompressedVectors.load(reader.get(), 0));
         }
       }
 
-      var pqDims = dimensions / pqFactor;
+      LOGGER.warn(
+          "no compressed vectors for pqFactor {}, building them now. "
+              + "set JVECTOR_PQ_FACTORS when building the index to build them ahead of time",
+          pqFactor);
+      var views = new PerThread<>(() -> new ViewVectors(graph.getView(), dimensions));
+      try (var pool = new ForkJoinPool()) {
+        writeCompressedVectors(
+            compressedVectorsFile,
+            pqFactor,
+            DEFAULT_PQ_TRAINING_SAMPLE,
+            graph.size(),
+            views,
+            vectorSimilarityFunction,
+            pool);
+      } finally {
+        for (var view : views.all()) {
+          Exceptions.wrap(view.view()::close);
+        }
+      }
 
+      try (var reader = new MMapReaderSupplier(compressedVectorsFile, ByteOrder.BIG_ENDIAN)) {
+        return Optional.of(CompressedVectors.load(reader.get(), 0));
+      }
+    }
+  }
+
+  /**
+   * Live keeps a GraphIndexBuilder open and searches its in-memory graph while vectors are inserted
+   * into and deleted from it.
+   *
+   * <p>jvector can't remove nodes from a graph, so deletes are tombstones: deleted nodes are still
+   * traversed by searches, but are never returned.
+   */
+  public static final class Live implements Index.Live {
+    private final GraphIndexBuilder<float[]> indexBuilder;
+    private final VectorSimilarityFunction similarityFunction;
+    private final BuildParameters buildParams;
+    private final QueryParameters queryParams;
+    private final PerThread<RandomAccessVectorValues<float[]>> insertVectors;
+    private final PerThread<LiveSearcher> searchers;
+    // A bit per vector id, set once the vector is deleted.
+    private final AtomicLongArray deleted;
+    private final Bits notDeleted;
+
+    private Live(
+        MMapRandomAccessVectorValues vectors,
+        GraphIndexBuilder<float[]> indexBuilder,
+        VectorSimilarityFunction similarityFunction,
+        BuildParameters buildParams,
+        QueryParameters queryParams) {
+      this.indexBuilder = indexBuilder;
+      this.similarityFunction = similarityFunction;
+      this.buildParams = buildParams;
+      this.queryParams = queryParams;
+      this.insertVectors = new PerThread<>(vectors::copy);
+      // Searchers must tolerate nodes being added to the graph mid-search.
+      this.searchers =
+          new PerThread<>(
+              () -> {
+                var view = this.indexBuilder.getGraph().getView();
+                return new LiveSearcher(
+                    new GraphSearcher.Builder<>(view).withConcurrentUpdates().build(),
+                    vectors.copy());
+              });
+      this.deleted = new AtomicLongArray((vectors.size() + Long.SIZE - 1) / Long.SIZE);
+      this.notDeleted =
+          new Bits() {
+            @Override
+            public boolean get(int ordinal) {
+              return !isDeleted(ordinal);
+            }
+
+            @Override
+            public int length() {
+              return indexBuilder.getGraph().size();
+            }
+          };
+    }
+
+    public static Index.Live create(
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Index.Querier.Parameters parameters) {
+      Preconditions.checkArgument(
+          parameters.type().equals("vamana"),
+          "unexpected jvector index type: %s",
+          parameters.type());
+
+      var buildParams =
+          Records.fromMap(parameters.buildParameters(), BuildParameters.class, "build parameters");
+      var queryParams =
+          Records.fromMap(parameters.queryParameters(), QueryParameters.class, "query parameters");
+      Preconditions.checkArgument(
+          queryParams.pqFactor <= 0, "live jvector indexes don't support pqFactor");
+
+      var vectorSimilarityFunction =
+          switch (similarityFunction) {
+            case COSINE -> VectorSimilarityFunction.COSINE;
+            case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
+            case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
+          };
+
+      var sharedVectors = vectors.shared();
+      var indexBuilder =
+          new GraphIndexBuilder<>(
+              sharedVectors,
+              VectorEncoding.FLOAT32,
+              vectorSimilarityFunction,
+              buildParams.M,
+              buildParams.beamWidth,
+              buildParams.neighborOverflow,
+              buildParams.alpha);
+
+      return new JVectorIndex.Live(
+          sharedVectors, indexBuilder, vectorSimilarityFunction, buildParams, queryParams);
+    }
+
+    @Override
+    public void insert(int id) {
+      var vectors = this.insertVectors.acquire();
+      try {
+        this.indexBuilder.addGraphNode(id, vectors);
+      } finally {
+        this.insertVectors.release(vectors);
+      }
+    }
+
+    @Override
+    public void delete(int id) {
+      var mask = 1L << id;
+      var previous = this.deleted.getAndAccumulate(id / Long.SIZE, mask, (word, bit) -> word | bit);
+      Preconditions.checkState((previous & mask) == 0, "vector %s was already deleted", id);
+    }
+
+    @Override
+    public void query(float[] vector, int k, QueryResults results) {
+      var searcher = this.searchers.acquire();
+      SearchResult.NodeScore[] nodes;
+      try {
+        var vectors = searcher.vectors;
+        nodes =
+            searcher
+                .searcher
+                .search(
+                    (ExactScoreFunction)
+                        (i -> this.similarityFunction.compare(vector, vectors.vectorValue(i))),
+                    null,
+                    this.queryParams.numCandidates,
+                    this.notDeleted)
+                .getNodes();
+      } finally {
+        this.searchers.release(searcher);
+      }
+
+      results.clear();
+      for (int i = 0; i < Math.min(k, nodes.length); i++) {
+        results.add(nodes[i].node, nodes[i].score);
+      }
+    }
+
+    @Override
+    public String description() {
+      return String.format(
+          "jvector_vamana_M:%s-beamWidth:%s-neighborOverflow:%s-alpha:%s_numCandidates:%s",
+          buildParams.M,
+          buildParams.beamWidth,
+          buildParams.neighborOverflow,
+          buildParams.alpha,
+          queryParams.numCandidates);
+    }
+
+    @Override
+    public void close() {}
+
+    private boolean isDeleted(int id) {
+      return (this.deleted.get(id / Long.SIZE) & (1L << id)) != 0;
+    }
+
+    private record LiveSearcher(
+        GraphSearcher<float[]> searcher, RandomAccessVectorValues<float[]> vectors) {}
+  }
+
+  /**
+   * Trains a product quantization codebook on a sample of the vectors, then encodes every vector in
+   * parallel and streams the codes to path in chunks, in the format read by CompressedVectors.load.
+   * Only the training sample and a chunk of codes are held on heap.
+   *
+   * <p>vectors lends each thread its own RandomAccessVectorValues, the caller closes them after.
+   */
+  private static <V extends RandomAccessVectorValues<float[]>>
+      List<Index.Builder.BuildPhase> writeCompressedVectors(
+          Path path,
+          int pqFactor,
+          int trainingSample,
+          int size,
+          PerThread<V> vectors,
+          VectorSimilarityFunction similarityFunction,
+          ForkJoinPool pool)
+          throws IOException {
+    var sampleVectors = vectors.acquire();
+    var dimensions = sampleVectors.dimension();
+    var pqDims = dimensions / pqFactor;
+
+    LOGGER.info(
+        "building codebook with {} dimensions for pqFactor {} from a sample of {} vectors",
+        pqDims,
+        pqFactor,
+        Math.min(trainingSample, size));
+    var trainStart = Instant.now();
+    var sample =
+        new Random(0)
+            .ints(0, size)
+            .distinct()
+            .limit(Math.min(trainingSample, size))
+            .sorted()
+            .mapToObj(
+                i -> {
+                  var vector = sampleVectors.vectorValue(i);
+                  return sampleVectors.isValueShared() ? vector.clone() : vector;
+                })
+            .toList();
+    vectors.release(sampleVectors);
+    var pq =
+        ProductQuantization.compute(
+            new ListRandomAccessVectorValues(sample, dimensions),
+            pqDims,
+            similarityFunction == VectorSimilarityFunction.EUCLIDEAN);
+    var trainEnd = Instant.now();
+    LOGGER.info("built codebook in {}", Duration.between(trainStart, trainEnd));
+
+    var encodeStart = Instant.now();
+    var chunk = new byte[PQ_ENCODE_CHUNK_VECTORS * pqDims];
+    try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        var progress = ProgressBar.create("encoding", size)) {
+      pq.write(output);
+      output.writeInt(size);
+      output.writeInt(pqDims);
+
+      for (int start = 0; start < size; start += PQ_ENCODE_CHUNK_VECTORS) {
+        var chunkStart = start;
+        var chunkSize = Math.min(PQ_ENCODE_CHUNK_VECTORS, size - start);
+        pool.submit(
+                () ->
+                    IntStream.range(0, chunkSize)
+                        .parallel()
+                        .forEach(
+                            i -> {
+                              var threadVectors = vectors.acquire();
+                              var code = pq.encode(threadVectors.vectorValue(chunkStart + i));
+                              vectors.release(threadVectors);
+                              System.arraycopy(code, 0, chunk, i * pqDims, pqDims);
+                            }))
+            .join();
+        output.write(chunk, 0, chunkSize * pqDims);
+        progress.inc(chunkSize);
+      }
+    }
+    var encodeEnd = Instant.now();
+    LOGGER.info(
+        "encoded vectors in {}, compressed size: {}",
+        Duration.between(encodeStart, encodeEnd),
+        Bytes.ofBytes(Files.size(path)));
+
+    return List.of(
+        new Index.Builder.BuildPhase(
+            "pq-" + pqFactor + "-train", Duration.between(trainStart, trainEnd)),
+        new Index.Builder.BuildPhase(
+            "pq-" + pqFactor + "-encode", Duration.between(encodeStart, encodeEnd)));
+  }
+
+  /**
+   * Serves an OnDiskGraphIndex through io_uring readers. When prefetching, expanding a node reads
+   * the records of all of its neighbors that aren't otherwise cached in a single submission, so
+   * scoring them doesn't then take a round trip per neighbor.
+   */
+  private static class IoUringGraphIndex implements GraphIndex<float[]> {
+    private final OnDiskGraphIndex<float[]> graph;
+    private final IoUringReaderSupplier readerSupplier;
+    private final IntPredicate cached;
+    private final int dimensions;
+    private final int entryNode;
+    private final long recordBytes;
+    private final boolean prefetch;
+
+    IoUringGraphIndex(
+        OnDiskGraphIndex<float[]> graph,
+        IoUringReaderSupplier readerSupplier,
+        int dimensions,
+        boolean prefetch,
+        IntPredicate cached)
+        throws IOException {
+      this.graph = graph;
+      this.readerSupplier = readerSupplier;
+      this.cached = cached;
+      this.dimensions = dimensions;
+      try (var reader = readerSupplier.get()) {
+        reader.seek(2 * Integer.BYTES);
+        this.entryNode = reader.readInt();
+      }
+      // Each node is written as its id, vector, neighbor count, and maxDegree neighbors.
+      this.recordBytes =
+          Integer.BYTES
+              + (long) dimensions * Float.BYTES
+              + (graph.maxDegree() + 1L) * Integer.BYTES;
+      this.prefetch = prefetch;
+    }
+
+    @Override
+    public int size() {
+      return this.graph.size();
+    }
+
+    @Override
+    public NodesIterator getNodes() {
+      return this.graph.getNodes();
+    }
+
+    @Override
+    public View<float[]> getView() {
+      return new IoUringView(this.readerSupplier.get());
+    }
+
+    @Override
+    public int maxDegree() {
+      return this.graph.maxDegree();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.graph.close();
+    }
+
+    private long recordOffset(int node) {
+      return GRAPH_HEADER_BYTES + node * this.recordBytes;
+    }
+
+    private class IoUringView implements View<float[]> {
+      private final IoUringReaderSupplier.Reader reader;
+      private final int[] neighbors;
+      private final long[] prefetchOffsets;
+
+      IoUringView(IoUringReaderSupplier.Reader reader) {
+        this.reader = reader;
+        this.neighbors = new int[maxDegree()];
+        this.prefetchOffsets = new long[maxDegree()];
+      }
+
+      @Override
+      public NodesIterator getNeighborsIterator(int node) {
+        try {
+          this.reader.seek(recordOffset(node) + Integer.BYTES + (long) dimensions * Float.BYTES);
+          var count = this.reader.readInt();
+          this.reader.read(this.neighbors, 0, count);
+
+          if (prefetch) {
+            var uncached = 0;
+            for (int i = 0; i < count; i++) {
+              if (!cached.test(this.neighbors[i])) {
+                this.prefetchOffsets[uncached++] = recordOffset(this.neighbors[i]);
+              }
+            }
+            this.reader.prefetch(this.prefetchOffsets, uncached, recordBytes);
+          }
+
+          return new NodesIterator.ArrayNodesIterator(this.neighbors, count);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public float[] getVector(int node) {
+        try {
+          var vector = new float[dimensions];
+          this.reader.seek(recordOffset(node) + Integer.BYTES);
+          this.reader.readFully(vector);
+          return vector;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public int size() {
+        return IoUringGraphIndex.this.size();
+      }
+
+      @Override
+      public int entryNode() {
+        return entryNode;
+      }
+
+      @Override
+      public void close() {
+        this.reader.close();
+      }
+    }
+  }
+
+  /**
+   * Serves the nodes held by a HotNodeCache from it, and all others from the wrapped graph. While
+   * profiling, counts how often each node is expanded so that the cache can then be filled with the
+   * most visited nodes.
+   */
+  private static class NodeCachingGraphIndex implements GraphIndex<float[]> {
+    private final GraphIndex<float[]> graph;
+    private final HotNodeCache cache;
+    private volatile AtomicIntegerArray visits;
+
+    NodeCachingGraphIndex(GraphIndex<float[]> graph, HotNodeCache cache, boolean profile) {
+      this.graph = graph;
+      this.cache = cache;
+      this.visits = profile ? new AtomicIntegerArray(graph.size()) : null;
+    }
+
+    /**
+     * Stops profiling, and fills the cache with the nodes visited most often so far. Must not be
+     * called concurrently with searches.
+     */
+    void fillFromProfile() throws Exception {
+      var visits = this.visits;
+      if (visits == null) {
+        return;
+      }
+
+      this.visits = null;
+      try (var view = this.graph.getView()) {
+        this.cache.fill(view, HotNodeCache.byFrequency(visits));
+      }
       LOGGER.info(
-          "index configured with pqFactor of {}, building codebook with {} dimensions",
-          pqFactor,
-          pqDims);
-
-      var graphVectors = graphViewVectors(graph.getView(), dimensions);
-      var size = graph.size();
-
-      List<float[]> vectors;
-      try (var progress = ProgressBar.create("loading vectors from graph", size)) {
-        vectors =
-            IntStream.range(0, size)
-                .sequential()
-                .mapToObj(graphVectors::vectorValue)
-                .peek(ignored -> progress.inc())
-                .collect(Collectors.toList());
-      }
-
-      LOGGER.info("building codebooks");
-      var pqStart = Instant.now();
-      var pq =
-          ProductQuantization.compute(
-              new ListRandomAccessVectorValues(vectors, dimensions),
-              pqDims,
-              vectorSimilarityFunction == VectorSimilarityFunction.EUCLIDEAN);
-      var pqEnd = Instant.now();
-      LOGGER.info("built codebooks in {}", Duration.between(pqStart, pqEnd));
-
-      LOGGER.info("beginning to quantize vectors");
-      var quantizeStart = Instant.now();
-      var quantizedVectors = pq.encodeAll(vectors);
-      var compressedVectors = new CompressedVectors(pq, quantizedVectors);
-      var quantizeEnd = Instant.now();
-      LOGGER.info(
-          "quantized vectors in {}, compressed size: {}",
-          Duration.between(quantizeStart, quantizeEnd),
-          Bytes.ofBytes(compressedVectors.memorySize()));
+          "cached the {} nodes visited most often during warmup in {}",
+          this.cache.size(),
+          Bytes.ofBytes(this.cache.byteSize()));
+    }
+
+    @Override
+    public int size() {
+      return this.graph.size();
+    }
+
+    @Override
+    public NodesIterator getNodes() {
+      return this.graph.getNodes();
+    }
+
+    @Override
+    public View<float[]> getView() {
+      return new CachedView(this.graph.getView());
+    }
 
-      LOGGER.info("writing quantized vectors to disk");
-      var writeStart = Instant.now();
-      try (var output =
-          new DataOutputStream(new FileOutputStream(compressedVectorsFile.toFile()))) {
-        compressedVectors.write(output);
+    @Override
+    public int maxDegree() {
+      return this.graph.maxDegree();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.graph.close();
+      this.cache.close();
+    }
+
+    private class CachedView implements View<float[]> {
+      private final View<float[]> view;
+      private final int[] neighbors;
+
+      CachedView(View<float[]> view) {
+        this.view = view;
+        this.neighbors = new int[maxDegree()];
+      }
+
+      @Override
+      public NodesIterator getNeighborsIterator(int node) {
+        var visits = NodeCachingGraphIndex.this.visits;
+        if (visits != null) {
+          visits.incrementAndGet(node);
+        }
+
+        var slot = cache.slot(node);
+        if (slot == HotNodeCache.ABSENT) {
+          return this.view.getNeighborsIterator(node);
+        }
+
+        return new NodesIterator.ArrayNodesIterator(
+            this.neighbors, cache.neighbors(slot, this.neighbors));
       }
-      var writeEnd = Instant.now();
-      LOGGER.info("wrote quantized vectors in {}", Duration.between(writeStart, writeEnd));
 
-      return Optional.of(compressedVectors);
+      @Override
+      public float[] getVector(int node) {
+        var slot = cache.slot(node);
+        return slot == HotNodeCache.ABSENT ? this.view.getVector(node) : cache.vector(slot);
+      }
+
+      @Override
+      public int size() {
+        return this.view.size();
+      }
+
+      @Override
+      public int entryNode() {
+        return this.view.entryNode();
+      }
+
+      @Override
+      public void close() throws Exception {
+        this.view.close();
+      }
     }
   }
 
   private static class MMapReaderSupplier implements ReaderSupplier {
-    private final MMapBuffer buffer;
-
-    public MMapReaderSupplier(Path path) throws IOException {
-      buffer = new MMapBuffer(path, FileChannel.MapMode.READ_ONLY, ByteOrder.BIG_ENDIAN);
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final ByteOrder order;
+
+    public MMapReaderSupplier(Path path, ByteOrder order) throws IOException {
+      this.arena = Arena.ofShared();
+      try (var channel = FileChannel.open(path)) {
+        this.segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), this.arena);
+      }
+      this.order = order;
     }
 
     @Override
     public RandomAccessReader get() {
-      return new MMapReader(buffer);
+      return new MMapReader(this.segment, this.order);
     }
 
     @Override
-    public void close() throws IOException {
-      buffer.close();
+    public void close() {
+      // OnDiskGraphIndex closes its supplier, which may then be closed again by its owner.
+      if (this.arena.scope().isAlive()) {
+        this.arena.close();
+      }
     }
   }
 
+  /**
+   * Reads directly from the mapped segment, copying floats and ints out in bulk. When the file is
+   * in native byte order the copies are plain memory copies.
+   */
   private static class MMapReader implements RandomAccessReader {
-    private final MMapBuffer buffer;
+    private final MemorySegment segment;
+    private final ValueLayout.OfInt intLayout;
+    private final ValueLayout.OfFloat floatLayout;
     private long position;
-    private byte[] floatsScratch = new byte[0];
-    private byte[] intsScratch = new byte[0];
 
-    MMapReader(MMapBuffer buffer) {
-      this.buffer = buffer;
+    MMapReader(MemorySegment segment, ByteOrder order) {
+      this.segment = segment;
+      this.intLayout = ValueLayout.JAVA_INT_UNALIGNED.withOrder(order);
+      this.floatLayout = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(order);
     }
 
     @Override
@@ -437,51 +1401,34 @@ public class JVectorIndex {
       position = offset;
     }
 
+    @Override
     public int readInt() {
-      try {
-        return buffer.memory().getInt(position);
-      } finally {
-        position += Integer.BYTES;
-      }
+      var value = segment.get(intLayout, position);
+      position += Integer.BYTES;
+      return value;
     }
 
+    @Override
     public void readFully(byte[] bytes) {
-      read(bytes, 0, bytes.length);
-    }
-
-    private void read(byte[] bytes, int offset, int count) {
-      try {
-        buffer.memory().getBytes(position, bytes, offset, count);
-      } finally {
-        position += count;
-      }
+      MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, bytes.length);
+      position += bytes.length;
     }
 
     @Override
     public void readFully(float[] floats) {
-      int bytesToRead = floats.length * Float.BYTES;
-      if (floatsScratch.length < bytesToRead) {
-        floatsScratch = new byte[bytesToRead];
-      }
-      read(floatsScratch, 0, bytesToRead);
-      ByteBuffer byteBuffer = ByteBuffer.wrap(floatsScratch).order(ByteOrder.BIG_ENDIAN);
-      byteBuffer.asFloatBuffer().get(floats);
+      MemorySegment.copy(segment, floatLayout, position, floats, 0, floats.length);
+      position += (long) floats.length * Float.BYTES;
     }
 
     @Override
     public void read(int[] ints, int offset, int count) {
-      int bytesToRead = (count - offset) * Integer.BYTES;
-      if (intsScratch.length < bytesToRead) {
-        intsScratch = new byte[bytesToRead];
-      }
-      read(intsScratch, 0, bytesToRead);
-      ByteBuffer byteBuffer = ByteBuffer.wrap(intsScratch).order(ByteOrder.BIG_ENDIAN);
-      byteBuffer.asIntBuffer().get(ints, offset, count);
+      MemorySegment.copy(segment, intLayout, position, ints, offset, count);
+      position += (long) count * Integer.BYTES;
     }
 
     @Override
     public void close() {
-      // don't close buffer, let the Supplier handle that
+      // don't close the segment, let the Supplier handle that
     }
   }
 }
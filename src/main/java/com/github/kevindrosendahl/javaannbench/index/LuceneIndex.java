@@ -4,21 +4,28 @@ import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
 import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
 import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.PerThread;
 import com.github.kevindrosendahl.javaannbench.util.Records;
 import com.google.common.base.Preconditions;
-import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
 import java.util.stream.IntStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.KnnVectorsFormat;
 import org.apache.lucene.codecs.lucene99.Lucene99Codec;
 import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
@@ -26,27 +33,50 @@ import org.apache.lucene.codecs.lucene99.Lucene99ScalarQuantizedVectorsFormat;
 import org.apache.lucene.codecs.vectorsandbox.VectorSandboxScalarQuantizedVectorsFormat;
 import org.apache.lucene.codecs.vectorsandbox.VectorSandboxVamanaVectorsFormat;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.KnnByteVectorField;
 import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
 import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnByteVectorQuery;
 import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class LuceneIndex {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(LuceneIndex.class);
+
   public enum Provider {
     HNSW("hnsw"),
+    HNSW_BYTES("hnsw-bytes"),
     SANDBOX_VAMANA("sandbox-vamana");
 
     final String description;
@@ -58,16 +88,67 @@ public final class LuceneIndex {
     static Provider parse(String description) {
       return switch (description) {
         case "hnsw" -> Provider.HNSW;
+        case "hnsw-bytes" -> Provider.HNSW_BYTES;
         case "sandbox-vamana" -> Provider.SANDBOX_VAMANA;
         default -> throw new RuntimeException("unexpected lucene index provider " + description);
       };
     }
   }
 
-  public sealed interface BuildParameters permits VamanaBuildParameters, HnswBuildParameters {}
+  /** How segments are merged while building, set by LUCENE_MERGE_POLICY. */
+  private enum MergeStrategy {
+    // Merges nothing until the index is force merged, then merges everything into one segment.
+    ALL("all"),
+    TIERED("tiered"),
+    LOG_BYTE_SIZE("log-byte-size");
+
+    final String description;
+
+    MergeStrategy(String description) {
+      this.description = description;
+    }
+
+    static MergeStrategy parse(String description) {
+      return switch (description) {
+        case "all" -> MergeStrategy.ALL;
+        case "tiered" -> MergeStrategy.TIERED;
+        case "log-byte-size" -> MergeStrategy.LOG_BYTE_SIZE;
+        default -> throw new RuntimeException(
+            "unexpected LUCENE_MERGE_POLICY "
+                + description
+                + ", expected all, tiered, or log-byte-size");
+      };
+    }
+  }
+
+  /**
+   * If attributes is set, each document also indexes its synthetic filter attribute, which filtered
+   * queries need. It's off by default, since it adds points and doc values to every document.
+   */
+  public sealed interface BuildParameters
+      permits VamanaBuildParameters, HnswBuildParameters, HnswBytesBuildParameters {}
 
   public record HnswBuildParameters(
-      int maxConn, int beamWidth, boolean scalarQuantization, int numThreads, boolean forceMerge)
+      int maxConn,
+      int beamWidth,
+      boolean scalarQuantization,
+      int numThreads,
+      boolean forceMerge,
+      @Records.Default("false") boolean attributes)
+      implements BuildParameters {}
+
+  /**
+   * Builds an HNSW graph over the train vectors quantized to bytes, with encoding int8 (4x smaller
+   * than floats) or binary-expanded (a bit per dimension, indexed as a byte per dimension, so also
+   * 4x smaller).
+   */
+  public record HnswBytesBuildParameters(
+      String encoding,
+      int maxConn,
+      int beamWidth,
+      int numThreads,
+      boolean forceMerge,
+      @Records.Default("false") boolean attributes)
       implements BuildParameters {}
 
   public record VamanaBuildParameters(
@@ -78,12 +159,28 @@ public final class LuceneIndex {
       boolean inGraphVectors,
       boolean scalarQuantization,
       int numThreads,
-      boolean forceMerge)
+      boolean forceMerge,
+      @Records.Default("false") boolean attributes)
       implements BuildParameters {}
 
-  public sealed interface QueryParameters permits HnswQueryParameters, VamanaQueryParameters {}
+  public sealed interface QueryParameters
+      permits HnswQueryParameters, HnswBytesQueryParameters, VamanaQueryParameters {}
+
+  /**
+   * searchThreads is the number of threads in the searcher's executor, which searches segments
+   * concurrently. If 0 (the default), segments are searched one after another on the querying
+   * thread.
+   */
+  public record HnswQueryParameters(int numCandidates, @Records.Default("0") int searchThreads)
+      implements QueryParameters {}
 
-  public record HnswQueryParameters(int numCandidates) implements QueryParameters {}
+  /**
+   * If rerank is set, the numCandidates nearest byte vectors are reranked by their similarity to
+   * the query using the original float vectors, and the k most similar are returned.
+   */
+  public record HnswBytesQueryParameters(
+      int numCandidates, boolean rerank, @Records.Default("0") int searchThreads)
+      implements QueryParameters {}
 
   public record VamanaQueryParameters(
       int numCandidates,
@@ -95,42 +192,60 @@ public final class LuceneIndex {
       boolean parallelNeighborhoods,
       int parallelNeighborhoodsBeamWidth,
       String parallelRerankThreads,
-      int nodeCacheDegree)
+      int nodeCacheDegree,
+      @Records.Default("0") int searchThreads)
       implements QueryParameters {}
 
   private static final String VECTOR_FIELD = "vector";
   private static final String ID_FIELD = "id";
+  private static final String ATTRIBUTE_FIELD = "attribute";
+  // Documents each build thread adds per call to addDocuments.
+  private static final int BATCH_SIZE = 64;
 
   public static final class Builder implements Index.Builder {
 
-    private final RandomAccessVectorValues<float[]> vectors;
+    private final MMapRandomAccessVectorValues vectors;
+    // The quantized vectors to index instead of vectors, if building byte vectors.
+    private final ByteVectors bytes;
     private final MMapDirectory directory;
     private final IndexWriter writer;
     private final AtomicBoolean shouldMerge;
+    private final MergeScheduler mergeScheduler;
+    private final MergeRecorder mergeRecorder;
     private final Provider provider;
     private final BuildParameters buildParams;
+    // The merge settings that differ from their defaults, for the description.
+    private final String settings;
     private final VectorSimilarityFunction similarityFunction;
 
     private Builder(
-        RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues vectors,
+        ByteVectors bytes,
         MMapDirectory directory,
         IndexWriter writer,
         AtomicBoolean shouldMerge,
+        MergeScheduler mergeScheduler,
+        MergeRecorder mergeRecorder,
         Provider provider,
         BuildParameters buildParams,
+        String settings,
         VectorSimilarityFunction similarityFunction) {
       this.vectors = vectors;
+      this.bytes = bytes;
       this.directory = directory;
       this.writer = writer;
       this.shouldMerge = shouldMerge;
+      this.mergeScheduler = mergeScheduler;
+      this.mergeRecorder = mergeRecorder;
       this.provider = provider;
       this.buildParams = buildParams;
+      this.settings = settings;
       this.similarityFunction = similarityFunction;
     }
 
     public static Index.Builder create(
         Path indexesPath,
-        RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues vectors,
         SimilarityFunction similarityFunction,
         Parameters parameters)
         throws IOException {
@@ -138,128 +253,67 @@ public final class LuceneIndex {
 
       var buildParams = parseBuildPrams(provider, parameters.buildParameters());
 
-      var similarity =
-          switch (similarityFunction) {
-            case COSINE -> VectorSimilarityFunction.COSINE;
-            case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
-            case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
-          };
-
       var description = buildDescription(provider, buildParams);
       var path = indexesPath.resolve(description);
       Preconditions.checkArgument(!path.toFile().exists(), "index already exists at %s", path);
 
+      var bytes = byteVectors(indexesPath, vectors, buildParams);
+      var similarity = similarity(similarityFunction, buildParams);
+
       var directory = new MMapDirectory(path);
 
-      var codec =
-          switch (provider) {
-            case HNSW -> {
-              var hnswParams = (HnswBuildParameters) buildParams;
-              yield new Lucene99Codec() {
-                @Override
-                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
-                  return new Lucene99HnswVectorsFormat(
-                      hnswParams.maxConn,
-                      hnswParams.beamWidth,
-                      hnswParams.scalarQuantization
-                          ? new Lucene99ScalarQuantizedVectorsFormat()
-                          : null,
-                      hnswParams.numThreads,
-                      hnswParams.numThreads == 1
-                          ? null
-                          : Executors.newFixedThreadPool(hnswParams.numThreads));
-                }
-              };
-            }
-            case SANDBOX_VAMANA -> {
-              var vamanaParams = (VamanaBuildParameters) buildParams;
-              yield new Lucene99Codec() {
-                @Override
-                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
-                  return new VectorSandboxVamanaVectorsFormat(
-                      vamanaParams.maxConn,
-                      vamanaParams.beamWidth,
-                      vamanaParams.alpha,
-                      vamanaParams.pqFactor,
-                      vamanaParams.inGraphVectors,
-                      vamanaParams.scalarQuantization
-                          ? new VectorSandboxScalarQuantizedVectorsFormat()
-                          : null,
-                      vamanaParams.forceMerge ? vamanaParams.numThreads : 1,
-                      vamanaParams.numThreads == 1 || !vamanaParams.forceMerge
-                          ? null
-                          : Executors.newFixedThreadPool(vamanaParams.numThreads));
-                }
-              };
-            }
-          };
+      var mergeRecorder = new MergeRecorder();
+      var codec = codec(buildParams, false, mergeRecorder::wrap);
+
+      var mergeStrategy =
+          Optional.ofNullable(System.getenv("LUCENE_MERGE_POLICY"))
+              .map(MergeStrategy::parse)
+              .orElse(MergeStrategy.ALL);
+      var concurrentMerges =
+          Optional.ofNullable(System.getenv("LUCENE_MERGE_SCHEDULER"))
+              .map(
+                  scheduler ->
+                      switch (scheduler) {
+                        case "serial" -> false;
+                        case "concurrent" -> true;
+                        default -> throw new RuntimeException(
+                            "unexpected LUCENE_MERGE_SCHEDULER "
+                                + scheduler
+                                + ", expected serial or concurrent");
+                      })
+              .orElse(false);
+      var defaultRamBuffer = Bytes.ofGibi(40);
+      var ramBuffer =
+          Optional.ofNullable(System.getenv("LUCENE_RAM_BUFFER"))
+              .map(Bytes::parse)
+              .orElse(defaultRamBuffer);
+      LOGGER.info(
+          "building with {} merge policy, {} merges, and a {} RAM buffer",
+          mergeStrategy.description,
+          concurrentMerges ? "concurrent" : "serial",
+          ramBuffer);
+
+      // Builds with different merge settings have different costs, so describe the settings that
+      // differ from the defaults. The index path is still named by the build parameters alone.
+      var settings = new ArrayList<String>();
+      if (mergeStrategy != MergeStrategy.ALL) {
+        settings.add("mergePolicy:" + mergeStrategy.description);
+      }
+      if (concurrentMerges) {
+        settings.add("mergeScheduler:concurrent");
+      }
+      if (ramBuffer.toBytes() != defaultRamBuffer.toBytes()) {
+        settings.add("ramBuffer:" + ramBuffer.toBytes());
+      }
 
       var shouldMerge = new AtomicBoolean(false);
       var mergePolicy =
-          new MergePolicy() {
-
-            @Override
-            public MergeSpecification findMerges(
-                MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext)
-                throws IOException {
-              System.out.println("findMerges triggered");
-
-              if (!shouldMerge.get()) {
-                System.out.println("shouldMerge is false, skipping");
-                return null;
-              }
-
-              var infos = segmentInfos.asList();
-              System.out.println("infos = " + infos);
-              System.out.println("infos.size() = " + infos.size());
-
-              if (infos.size() == 1) {
-                System.out.println("only one segment, skipping");
-                return null;
-              }
-
-              var merge = new OneMerge(infos);
-              var spec = new MergeSpecification();
-              spec.add(merge);
-              return spec;
-            }
-
-            @Override
-            public MergeSpecification findForcedMerges(
-                SegmentInfos segmentInfos,
-                int i,
-                Map<SegmentCommitInfo, Boolean> map,
-                MergeContext mergeContext)
-                throws IOException {
-              System.out.println("findForcedMerges triggered");
-
-              if (!shouldMerge.get()) {
-                System.out.println("shouldMerge is false, skipping");
-                return null;
-              }
-
-              var infos = segmentInfos.asList();
-              System.out.println("infos = " + infos);
-              System.out.println("infos.size() = " + infos.size());
-
-              if (infos.size() == 1) {
-                System.out.println("only one segment, skipping");
-                return null;
-              }
-
-              var merge = new OneMerge(infos);
-              var spec = new MergeSpecification();
-              spec.add(merge);
-              return spec;
-            }
-
-            @Override
-            public MergeSpecification findForcedDeletesMerges(
-                SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
-              System.out.println("findForcedDeletesMerges triggered");
-              return null;
-            }
+          switch (mergeStrategy) {
+            case ALL -> new MergeAllPolicy(shouldMerge);
+            case TIERED -> new TieredMergePolicy();
+            case LOG_BYTE_SIZE -> new LogByteSizeMergePolicy();
           };
+      var mergeScheduler = mergeRecorder.scheduler(concurrentMerges);
 
       var writer =
           new IndexWriter(
@@ -268,12 +322,22 @@ public final class LuceneIndex {
                   .setCodec(codec)
                   .setUseCompoundFile(false)
                   .setMaxBufferedDocs(1000000000)
-                  .setRAMBufferSizeMB(40 * 1024)
+                  .setRAMBufferSizeMB(ramBuffer.toMebi())
                   .setMergePolicy(mergePolicy)
-                  .setMergeScheduler(new SerialMergeScheduler()));
+                  .setMergeScheduler(mergeScheduler));
 
       return new LuceneIndex.Builder(
-          vectors, directory, writer, shouldMerge, provider, buildParams, similarity);
+          vectors,
+          bytes,
+          directory,
+          writer,
+          shouldMerge,
+          mergeScheduler,
+          mergeRecorder,
+          provider,
+          buildParams,
+          settings.isEmpty() ? "" : "_" + String.join("-", settings),
+          similarity);
     }
 
     @Override
@@ -282,61 +346,80 @@ public final class LuceneIndex {
       var numThreads =
           switch (buildParams) {
             case HnswBuildParameters params -> params.numThreads;
+            case HnswBytesBuildParameters params -> params.numThreads;
             case VamanaBuildParameters params -> params.numThreads;
           };
 
+      var batches =
+          new PerThread<>(
+              () -> new Batch(this.vectors, this.bytes, this.similarityFunction, this.buildParams));
+      var numBatches = (size + BATCH_SIZE - 1) / BATCH_SIZE;
+
       var buildStart = Instant.now();
       try (var pool = new ForkJoinPool(numThreads)) {
         try (var progress = ProgressBar.create("building", size)) {
           pool.submit(
-                  () -> {
-                    IntStream.range(0, size)
-                        .parallel()
-                        .forEach(
-                            i -> {
-                              Exceptions.wrap(
-                                  () -> {
-                                    var doc = new Document();
-                                    doc.add(new StoredField(ID_FIELD, i));
-                                    doc.add(
-                                        new KnnFloatVectorField(
-                                            VECTOR_FIELD,
-                                            this.vectors.vectorValue(i),
-                                            this.similarityFunction));
-                                    this.writer.addDocument(doc);
-                                  });
-                              progress.inc();
-                            });
-                  })
+                  () ->
+                      IntStream.range(0, numBatches)
+                          .parallel()
+                          .forEach(
+                              b -> {
+                                var first = b * BATCH_SIZE;
+                                var last = Math.min(size, first + BATCH_SIZE);
+                                var batch = batches.acquire();
+                                Exceptions.wrap(
+                                    () -> this.writer.addDocuments(batch.fill(first, last)));
+                                batches.release(batch);
+                                progress.inc(last - first);
+                              }))
               .join();
         }
       }
       var buildEnd = Instant.now();
+      var buildDuration = Duration.between(buildStart, buildEnd);
+      LOGGER.info(
+          "ingested {} documents in {} ({} documents/s)",
+          size,
+          buildDuration,
+          size / (buildDuration.toNanos() / 1e9));
+
+      // Flush the buffered documents into segments, so that ingestion is timed without it.
+      LOGGER.info("flushing");
+      var flushStart = Instant.now();
+      this.writer.flush();
+      var flushEnd = Instant.now();
 
       var merge =
           switch (buildParams) {
             case HnswBuildParameters params -> params.forceMerge;
+            case HnswBytesBuildParameters params -> params.forceMerge;
             case VamanaBuildParameters params -> params.forceMerge;
           };
 
       var mergeStart = Instant.now();
       if (merge) {
-        System.out.println("merging");
+        LOGGER.info("merging");
         this.shouldMerge.set(true);
         this.writer.forceMerge(1);
       }
+      // Wait for any merges still running in the background, so that they are timed here.
+      if (this.mergeScheduler instanceof ConcurrentMergeScheduler concurrent) {
+        concurrent.sync();
+      }
       var mergeEnd = Instant.now();
 
-      System.out.println("committing");
+      LOGGER.info("committing");
       var commitStart = Instant.now();
       this.writer.commit();
       var commitEnd = Instant.now();
 
       return new BuildSummary(
           List.of(
-              new BuildPhase("build", Duration.between(buildStart, buildEnd)),
+              new BuildPhase("build", buildDuration),
+              new BuildPhase("flush", Duration.between(flushStart, flushEnd)),
               new BuildPhase("merge", Duration.between(mergeStart, mergeEnd)),
-              new BuildPhase("commit", Duration.between(commitStart, commitEnd))));
+              new BuildPhase("commit", Duration.between(commitStart, commitEnd))),
+          this.mergeRecorder.merges());
     }
 
     public Bytes size() {
@@ -345,7 +428,7 @@ public final class LuceneIndex {
 
     @Override
     public String description() {
-      return buildDescription(this.provider, this.buildParams);
+      return buildDescription(this.provider, this.buildParams) + this.settings;
     }
 
     @Override
@@ -354,6 +437,91 @@ public final class LuceneIndex {
       this.directory.close();
     }
 
+    /**
+     * Batch holds a build thread's documents, whose fields and vector buffers are reused for every
+     * batch the thread adds. The indexing chain copies field values as each document is added, so
+     * they can be overwritten once addDocuments returns.
+     *
+     * <p>Lucene's own vectors writers copy each vector they are given, but the sandbox vamana
+     * writer isn't known to, so its documents get a fresh float[] for every vector instead.
+     *
+     * <p>Documents get byte vectors if bytes is non-null, and float vectors otherwise.
+     */
+    private static final class Batch {
+      private final MMapRandomAccessVectorValues vectors;
+      private final ByteVectors bytes;
+      private final boolean reuseBuffers;
+      private final boolean indexAttributes;
+      private final Document[] documents = new Document[BATCH_SIZE];
+      private final StoredField[] storedIds = new StoredField[BATCH_SIZE];
+      private final NumericDocValuesField[] ids = new NumericDocValuesField[BATCH_SIZE];
+      private final IntField[] attributes = new IntField[BATCH_SIZE];
+      private final KnnFloatVectorField[] vectorFields = new KnnFloatVectorField[BATCH_SIZE];
+      private final float[][] buffers = new float[BATCH_SIZE][];
+      private final byte[][] byteBuffers = new byte[BATCH_SIZE][];
+
+      Batch(
+          MMapRandomAccessVectorValues vectors,
+          ByteVectors bytes,
+          VectorSimilarityFunction similarityFunction,
+          BuildParameters buildParams) {
+        this.vectors = vectors;
+        this.bytes = bytes;
+        this.reuseBuffers = !(buildParams instanceof VamanaBuildParameters);
+        this.indexAttributes =
+            switch (buildParams) {
+              case HnswBuildParameters params -> params.attributes;
+              case HnswBytesBuildParameters params -> params.attributes;
+              case VamanaBuildParameters params -> params.attributes;
+            };
+        for (int i = 0; i < BATCH_SIZE; i++) {
+          this.storedIds[i] = new StoredField(ID_FIELD, 0);
+          this.ids[i] = new NumericDocValuesField(ID_FIELD, 0);
+
+          var document = new Document();
+          document.add(this.storedIds[i]);
+          document.add(this.ids[i]);
+          if (this.indexAttributes) {
+            this.attributes[i] = new IntField(ATTRIBUTE_FIELD, 0, Field.Store.NO);
+            document.add(this.attributes[i]);
+          }
+          if (bytes != null) {
+            this.byteBuffers[i] = new byte[bytes.dimensions()];
+            document.add(
+                new KnnByteVectorField(VECTOR_FIELD, this.byteBuffers[i], similarityFunction));
+          } else {
+            this.buffers[i] = new float[vectors.dimension()];
+            this.vectorFields[i] =
+                new KnnFloatVectorField(VECTOR_FIELD, this.buffers[i], similarityFunction);
+            document.add(this.vectorFields[i]);
+          }
+          this.documents[i] = document;
+        }
+      }
+
+      /** Sets the documents to the vectors with ids in [first, last), returning them. */
+      List<Document> fill(int first, int last) {
+        for (int id = first; id < last; id++) {
+          var i = id - first;
+          this.storedIds[i].setIntValue(id);
+          this.ids[i].setLongValue(id);
+          if (this.indexAttributes) {
+            this.attributes[i].setIntValue(AttributeFilter.attribute(id));
+          }
+          if (this.bytes != null) {
+            this.bytes.vectorValue(id, this.byteBuffers[i]);
+          } else if (this.reuseBuffers) {
+            this.vectors.vectorValue(id, this.buffers[i]);
+          } else {
+            var vector = new float[this.vectors.dimension()];
+            this.vectors.vectorValue(id, vector);
+            this.vectorFields[i].setVectorValue(vector);
+          }
+        }
+        return Arrays.asList(this.documents).subList(0, last - first);
+      }
+    }
+
     private static String buildDescription(Provider provider, BuildParameters params) {
       return String.format("lucene_%s_%s", provider.description, buildParamString(params));
     }
@@ -361,14 +529,23 @@ public final class LuceneIndex {
     private static String buildParamString(BuildParameters params) {
       return switch (params) {
         case HnswBuildParameters hnsw -> String.format(
-            "maxConn:%s-beamWidth:%s-scalarQuantization:%s-numThreads:%s-forceMerge:%s",
+            "maxConn:%s-beamWidth:%s-scalarQuantization:%s-numThreads:%s-forceMerge:%s%s",
             hnsw.maxConn,
             hnsw.beamWidth,
             hnsw.scalarQuantization,
             hnsw.numThreads,
-            hnsw.forceMerge);
+            hnsw.forceMerge,
+            attributesString(hnsw.attributes));
+        case HnswBytesBuildParameters hnsw -> String.format(
+            "encoding:%s-maxConn:%s-beamWidth:%s-numThreads:%s-forceMerge:%s%s",
+            hnsw.encoding,
+            hnsw.maxConn,
+            hnsw.beamWidth,
+            hnsw.numThreads,
+            hnsw.forceMerge,
+            attributesString(hnsw.attributes));
         case VamanaBuildParameters vamana -> String.format(
-            "maxConn:%s-beamWidth:%s-alpha:%s-pqFactor:%s-inGraphVectors:%s-scalarQuantization:%s-numThreads:%s-forceMerge:%s",
+            "maxConn:%s-beamWidth:%s-alpha:%s-pqFactor:%s-inGraphVectors:%s-scalarQuantization:%s-numThreads:%s-forceMerge:%s%s",
             vamana.maxConn,
             vamana.beamWidth,
             vamana.alpha,
@@ -376,9 +553,15 @@ public final class LuceneIndex {
             vamana.inGraphVectors,
             vamana.scalarQuantization,
             vamana.numThreads,
-            vamana.forceMerge);
+            vamana.forceMerge,
+            attributesString(vamana.attributes));
       };
     }
+
+    /** Omits the default attributes, so descriptions match those of indexes built without it. */
+    private static String attributesString(boolean attributes) {
+      return attributes ? "-attributes:true" : "";
+    }
   }
 
   public static final class Querier implements Index.Querier {
@@ -386,26 +569,53 @@ public final class LuceneIndex {
     private final Directory directory;
     private final IndexReader reader;
     private final IndexSearcher searcher;
+    private final ExecutorService searchExecutor;
     private final Provider provider;
     private final BuildParameters buildParams;
     private final QueryParameters queryParams;
+    private final boolean hasAttributes;
+    // The id of each document, indexed by its docID in the top level reader. Loaded by the first
+    // query that needs ids, or at the end of the warmup.
+    private volatile int[] ids;
+    // The original vectors and their similarity, to rerank hits with.
+    private final MMapRandomAccessVectorValues vectors;
+    private final VectorSimilarityFunction similarity;
+    private final PerThread<float[]> rerankBuffers;
+    // The quantized vectors, if the index holds byte vectors.
+    private final ByteVectors bytes;
 
     private Querier(
         Directory directory,
         IndexReader reader,
         IndexSearcher searcher,
+        ExecutorService searchExecutor,
         Provider provider,
         BuildParameters buildParams,
-        QueryParameters queryParams) {
+        QueryParameters queryParams,
+        MMapRandomAccessVectorValues vectors,
+        VectorSimilarityFunction similarity,
+        ByteVectors bytes) {
       this.directory = directory;
       this.reader = reader;
       this.searcher = searcher;
+      this.searchExecutor = searchExecutor;
       this.provider = provider;
       this.buildParams = buildParams;
       this.queryParams = queryParams;
+      this.hasAttributes =
+          FieldInfos.getMergedFieldInfos(reader).fieldInfo(ATTRIBUTE_FIELD) != null;
+      this.vectors = vectors;
+      this.similarity = similarity;
+      this.rerankBuffers = new PerThread<>(() -> new float[vectors.dimension()]);
+      this.bytes = bytes;
     }
 
-    public static Index.Querier create(Path indexesPath, Parameters parameters) throws IOException {
+    public static Index.Querier create(
+        Path indexesPath,
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Parameters parameters)
+        throws IOException {
       var provider = Provider.parse(parameters.type());
 
       var buildParams = parseBuildPrams(provider, parameters.buildParameters());
@@ -415,63 +625,644 @@ public final class LuceneIndex {
       var path = indexesPath.resolve(buildDescription);
       Preconditions.checkArgument(path.toFile().exists(), "index does not exist at {}", path);
 
+      if (queryParams instanceof VamanaQueryParameters vamanaParams) {
+        checkVamanaReader(vamanaParams);
+      }
       var directory = new MMapDirectory(indexesPath.resolve(buildDescription));
       var reader = DirectoryReader.open(directory);
-      var searcher = new IndexSearcher(reader);
+      var searchExecutor = searchExecutor(queryParams);
       return new LuceneIndex.Querier(
-          directory, reader, searcher, provider, buildParams, queryParams);
+          directory,
+          reader,
+          searcher(reader, searchExecutor, queryParams),
+          searchExecutor,
+          provider,
+          buildParams,
+          queryParams,
+          vectors,
+          floatSimilarity(similarityFunction),
+          byteVectors(indexesPath, vectors, buildParams));
     }
 
-    @Override
-    public List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException {
-      var numCandidates =
-          switch (queryParams) {
-            case HnswQueryParameters hnsw -> hnsw.numCandidates;
-            case VamanaQueryParameters vamana -> vamana.numCandidates;
-          };
+    /** Returns the executor to search segments concurrently with, if searchThreads is positive. */
+    private static ExecutorService searchExecutor(QueryParameters queryParams) {
+      var searchThreads = searchThreads(queryParams);
+      Preconditions.checkArgument(searchThreads >= 0, "searchThreads must not be negative");
+      return searchThreads == 0 ? null : Executors.newFixedThreadPool(searchThreads);
+    }
+
+    private static IndexSearcher searcher(
+        IndexReader reader, ExecutorService searchExecutor, QueryParameters queryParams) {
+      if (searchExecutor == null) {
+        return new IndexSearcher(reader);
+      }
+
+      var searchThreads = searchThreads(queryParams);
+      return new IndexSearcher(reader, searchExecutor) {
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+          return sliceLeaves(leaves, searchThreads);
+        }
+      };
+    }
+
+    /**
+     * Groups the leaves into about one slice per search thread, balancing them by document count,
+     * in place of Lucene's default slices, which have a fixed maximum size regardless of the number
+     * of threads. The vector search itself runs a task per segment, the slices split up collecting
+     * the top hits.
+     */
+    private static IndexSearcher.LeafSlice[] sliceLeaves(
+        List<LeafReaderContext> leaves, int searchThreads) {
+      var maxDoc = leaves.stream().mapToLong(leaf -> leaf.reader().maxDoc()).sum();
+      var maxDocsPerSlice = (int) Math.max(1, (maxDoc + searchThreads - 1) / searchThreads);
+      var maxSegmentsPerSlice = Math.max(1, (leaves.size() + searchThreads - 1) / searchThreads);
+      return IndexSearcher.slices(leaves, maxDocsPerSlice, maxSegmentsPerSlice);
+    }
+
+    private static int searchThreads(QueryParameters queryParams) {
+      return switch (queryParams) {
+        case HnswQueryParameters hnsw -> hnsw.searchThreads;
+        case HnswBytesQueryParameters hnsw -> hnsw.searchThreads;
+        case VamanaQueryParameters vamana -> vamana.searchThreads;
+      };
+    }
+
+    /**
+     * The sandbox vamana format's reader only reads its query parameters from the VAMANA_*
+     * environment variables, which are fixed for the process, so rather than benchmark settings
+     * that differ from the ones in the report, reject parameters the environment doesn't match.
+     * This also rejects sweeping them.
+     */
+    private static void checkVamanaReader(VamanaQueryParameters params) {
+      var variables = new LinkedHashMap<String, Object>();
+      variables.put("VAMANA_CANDIDATES", params.numCandidates);
+      variables.put("VAMANA_PQ_RERANK", params.pqRerank);
+      variables.put("VAMANA_MLOCK_GRAPH", params.mlockGraph);
+      variables.put("VAMANA_MMAP_PQ_VECTORS", params.mmapPqVectors);
+      variables.put("VAMANA_MLOCK_PQ_VECTORS", params.mlockPqVectors);
+      variables.put("VAMANA_PARALLEL_PQ_VECTORS", params.parallelPqVectors);
+      variables.put("VAMANA_PARALLEL_NEIGHBORHOODS", params.parallelNeighborhoods);
+      variables.put(
+          "VAMANA_PARALLEL_NEIGHBORHOODS_BEAM_WIDTH", params.parallelNeighborhoodsBeamWidth);
+      variables.put("VAMANA_PARALLEL_RERANK_THREADS", params.parallelRerankThreads);
+      variables.put("VAMANA_CACHE_DEGREE", params.nodeCacheDegree);
+      variables.forEach(
+          (name, value) -> {
+            var env = System.getenv(name);
+            Preconditions.checkArgument(
+                String.valueOf(value).equals(env),
+                "the sandbox vamana reader reads its query parameters from the environment, "
+                    + "but %s is %s rather than %s (vamana query parameters can't be swept)",
+                name,
+                env,
+                value);
+          });
+    }
+
+    /**
+     * Loads every document's id into a table indexed by docID, so that resolving a hit's id is an
+     * array read rather than a stored fields lookup. Indexes built before ids were indexed as doc
+     * values fall back to reading the stored ids, once.
+     */
+    private int[] ids() throws IOException {
+      var ids = this.ids;
+      if (ids == null) {
+        synchronized (this) {
+          ids = this.ids;
+          if (ids == null) {
+            ids = loadIds(this.reader);
+            this.ids = ids;
+          }
+        }
+      }
+      return ids;
+    }
 
-      var query = new KnnFloatVectorQuery(VECTOR_FIELD, vector, numCandidates);
-      var results = this.searcher.search(query, numCandidates);
-      var ids = new ArrayList<Integer>(k);
-
-      for (int i = 0; i < k; i++) {
-        var result = results.scoreDocs[i];
-        var id =
-            ensureIds
-                ? this.searcher
-                    .storedFields()
-                    .document(result.doc)
-                    .getField(ID_FIELD)
-                    .numericValue()
-                    .intValue()
-                : result.doc;
-        ids.add(id);
+    /**
+     * Loads the id table if it's cheap, so that loading it doesn't land in the first timed query.
+     * Warmup queries that need ids have already loaded it. Otherwise it's only loaded now for
+     * indexes with doc value ids, since reading every stored document would be wasted on runs that
+     * don't need ids.
+     */
+    @Override
+    public void warmupComplete() throws IOException {
+      var id = FieldInfos.getMergedFieldInfos(this.reader).fieldInfo(ID_FIELD);
+      if (id != null && id.getDocValuesType() != DocValuesType.NONE) {
+        ids();
       }
+    }
 
+    private static int[] loadIds(IndexReader reader) throws IOException {
+      var ids = new int[reader.maxDoc()];
+      for (var leaf : reader.leaves()) {
+        var values = leaf.reader().getNumericDocValues(ID_FIELD);
+        if (values != null) {
+          for (var doc = values.nextDoc();
+              doc != DocIdSetIterator.NO_MORE_DOCS;
+              doc = values.nextDoc()) {
+            ids[leaf.docBase + doc] = (int) values.longValue();
+          }
+          continue;
+        }
+
+        var storedFields = leaf.reader().storedFields();
+        for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+          ids[leaf.docBase + doc] =
+              storedFields.document(doc).getField(ID_FIELD).numericValue().intValue();
+        }
+      }
       return ids;
     }
 
+    @Override
+    public void query(float[] vector, int k, boolean ensureIds, QueryResults results)
+        throws IOException {
+      query(vector, k, numCandidates(this.queryParams), ensureIds, results);
+    }
+
+    @Override
+    public void query(
+        float[] vector, int k, boolean ensureIds, AttributeFilter filter, QueryResults results)
+        throws IOException {
+      Preconditions.checkState(
+          this.hasAttributes,
+          "index was built without the %s field, rebuild it with attributes: true to run filtered"
+              + " queries",
+          ATTRIBUTE_FIELD);
+      var attributeQuery = IntField.newRangeQuery(ATTRIBUTE_FIELD, 0, filter.threshold() - 1);
+      query(vector, attributeQuery, k, numCandidates(this.queryParams), ensureIds, results);
+    }
+
+    private void query(
+        float[] vector, int k, int numCandidates, boolean ensureIds, QueryResults results)
+        throws IOException {
+      query(vector, null, k, numCandidates, ensureIds, results);
+    }
+
+    private void query(
+        float[] vector,
+        Query filter,
+        int k,
+        int numCandidates,
+        boolean ensureIds,
+        QueryResults results)
+        throws IOException {
+      var scoreDocs =
+          this.searcher.search(knnQuery(this.bytes, vector, numCandidates, filter), numCandidates)
+              .scoreDocs;
+      if (rerank()) {
+        rerank(vector, scoreDocs);
+      }
+
+      var ids = ensureIds ? ids() : null;
+      results.clear();
+      for (int i = 0; i < Math.min(k, scoreDocs.length); i++) {
+        var result = scoreDocs[i];
+        results.add(ensureIds ? ids[result.doc] : result.doc, result.score);
+      }
+    }
+
+    /** Returns the query for the vector's nearest neighbors, quantized if the index is bytes. */
+    private static Query knnQuery(
+        ByteVectors bytes, float[] vector, int numCandidates, Query filter) {
+      if (bytes == null) {
+        return new KnnFloatVectorQuery(VECTOR_FIELD, vector, numCandidates, filter);
+      }
+
+      var target = new byte[bytes.dimensions()];
+      bytes.quantize(vector, target);
+      return new KnnByteVectorQuery(VECTOR_FIELD, target, numCandidates, filter);
+    }
+
+    /**
+     * Rescores the hits by comparing the query to their original float vectors, and sorts them by
+     * the new scores.
+     */
+    private void rerank(float[] vector, ScoreDoc[] scoreDocs) throws IOException {
+      var ids = ids();
+      var buffer = this.rerankBuffers.acquire();
+      for (var scoreDoc : scoreDocs) {
+        this.vectors.vectorValue(ids[scoreDoc.doc], buffer);
+        scoreDoc.score = this.similarity.compare(vector, buffer);
+      }
+      this.rerankBuffers.release(buffer);
+      Arrays.sort(scoreDocs, (a, b) -> Float.compare(b.score, a.score));
+    }
+
+    private boolean rerank() {
+      return this.queryParams instanceof HnswBytesQueryParameters params && params.rerank;
+    }
+
+    private static int numCandidates(QueryParameters queryParams) {
+      return switch (queryParams) {
+        case HnswQueryParameters hnsw -> hnsw.numCandidates;
+        case HnswBytesQueryParameters hnsw -> hnsw.numCandidates;
+        case VamanaQueryParameters vamana -> vamana.numCandidates;
+      };
+    }
+
     @Override
     public String description() {
       return String.format(
           "lucene_%s_%s_%s",
           provider.description,
           LuceneIndex.Builder.buildParamString(buildParams),
-          queryParamString());
+          queryParamString(queryParams));
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+      return Map.of(
+          "segments", this.reader.leaves().size(), "slices", this.searcher.getSlices().length);
     }
 
     @Override
     public void close() throws Exception {
       this.directory.close();
       this.reader.close();
+      if (this.searchExecutor != null) {
+        this.searchExecutor.shutdown();
+      }
     }
 
-    private String queryParamString() {
+    private static String queryParamString(QueryParameters queryParams) {
       return switch (queryParams) {
-        case HnswQueryParameters hnsw -> String.format("numCandidates:%s", hnsw.numCandidates);
+        case HnswQueryParameters hnsw -> String.format(
+            "numCandidates:%s%s", hnsw.numCandidates, searchThreadsString(hnsw.searchThreads));
+        case HnswBytesQueryParameters hnsw -> String.format(
+            "numCandidates:%s-rerank:%s%s",
+            hnsw.numCandidates, hnsw.rerank, searchThreadsString(hnsw.searchThreads));
         case VamanaQueryParameters vamana -> String.format(
-            "numCandidates:%s-pqRerank:%s", vamana.numCandidates, vamana.pqRerank);
+            "numCandidates:%s-pqRerank:%s-mlockGraph:%s-mmapPqVectors:%s-mlockPqVectors:%s-parallelPqVectors:%s-parallelNeighborhoods:%s-parallelNeighborhoodsBeamWidth:%s-parallelRerankThreads:%s-nodeCacheDegree:%s%s",
+            vamana.numCandidates,
+            vamana.pqRerank,
+            vamana.mlockGraph,
+            vamana.mmapPqVectors,
+            vamana.mlockPqVectors,
+            vamana.parallelPqVectors,
+            vamana.parallelNeighborhoods,
+            vamana.parallelNeighborhoodsBeamWidth,
+            vamana.parallelRerankThreads,
+            vamana.nodeCacheDegree,
+            searchThreadsString(vamana.searchThreads));
+      };
+    }
+
+    /** Omits the default searchThreads, so descriptions match those from before it existed. */
+    private static String searchThreadsString(int searchThreads) {
+      return searchThreads == 0 ? "" : "-searchThreads:" + searchThreads;
+    }
+  }
+
+  /**
+   * NearRealTime searches an index while documents are still being added to it, the way an index
+   * serving live traffic is. Documents are added with an IndexWriter, and a SearcherManager opened
+   * on the writer makes the documents added so far searchable each time it is refreshed, without
+   * committing.
+   *
+   * <p>The index is built from scratch in the dataset's nrt directory, with a tiered merge policy
+   * merging in the background, and is deleted when closed. The segments change with every refresh,
+   * so hits' ids are read from doc values rather than an id table.
+   */
+  public static final class NearRealTime implements Index {
+
+    private static final String NRT_DIRECTORY = "nrt";
+
+    private final Path path;
+    private final MMapDirectory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ExecutorService searchExecutor;
+    private final PerThread<LuceneIndex.Builder.Batch> batches;
+    // The quantized vectors, if the index holds byte vectors.
+    private final ByteVectors bytes;
+    private final Provider provider;
+    private final BuildParameters buildParams;
+    private final QueryParameters queryParams;
+    // The RAM buffer setting, if it differs from the default, for the description.
+    private final String settings;
+
+    private NearRealTime(
+        Path path,
+        MMapDirectory directory,
+        IndexWriter writer,
+        SearcherManager searcherManager,
+        ExecutorService searchExecutor,
+        PerThread<LuceneIndex.Builder.Batch> batches,
+        ByteVectors bytes,
+        Provider provider,
+        BuildParameters buildParams,
+        QueryParameters queryParams,
+        String settings) {
+      this.path = path;
+      this.directory = directory;
+      this.writer = writer;
+      this.searcherManager = searcherManager;
+      this.searchExecutor = searchExecutor;
+      this.batches = batches;
+      this.bytes = bytes;
+      this.provider = provider;
+      this.buildParams = buildParams;
+      this.queryParams = queryParams;
+      this.settings = settings;
+    }
+
+    public static NearRealTime create(
+        Path indexesPath,
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Index.Querier.Parameters parameters)
+        throws IOException {
+      var provider = Provider.parse(parameters.type());
+      var buildParams = parseBuildPrams(provider, parameters.buildParameters());
+      var queryParams = parseQueryPrams(provider, parameters.queryParameters());
+      Preconditions.checkArgument(
+          !(queryParams instanceof HnswBytesQueryParameters params && params.rerank),
+          "near-real-time search does not support rerank");
+      if (queryParams instanceof VamanaQueryParameters vamanaParams) {
+        LuceneIndex.Querier.checkVamanaReader(vamanaParams);
+      }
+
+      var path =
+          indexesPath
+              .resolve(NRT_DIRECTORY)
+              .resolve(LuceneIndex.Builder.buildDescription(provider, buildParams));
+      FileUtils.deleteDirectory(path.toFile());
+
+      var bytes = byteVectors(indexesPath, vectors, buildParams);
+      var similarity = similarity(similarityFunction, buildParams);
+      var ramBuffer = Optional.ofNullable(System.getenv("LUCENE_RAM_BUFFER")).map(Bytes::parse);
+
+      var directory = new MMapDirectory(path);
+      var writer =
+          new IndexWriter(
+              directory,
+              new IndexWriterConfig()
+                  .setCodec(codec(buildParams, false, UnaryOperator.identity()))
+                  .setUseCompoundFile(false)
+                  .setRAMBufferSizeMB(
+                      ramBuffer
+                          .map(Bytes::toMebi)
+                          .map(Long::doubleValue)
+                          .orElse(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB))
+                  .setMergePolicy(new TieredMergePolicy())
+                  .setMergeScheduler(new ConcurrentMergeScheduler()));
+
+      var searchExecutor = LuceneIndex.Querier.searchExecutor(queryParams);
+      var searcherManager =
+          new SearcherManager(
+              writer,
+              new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                  return LuceneIndex.Querier.searcher(reader, searchExecutor, queryParams);
+                }
+              });
+
+      return new NearRealTime(
+          path,
+          directory,
+          writer,
+          searcherManager,
+          searchExecutor,
+          new PerThread<>(
+              () -> new LuceneIndex.Builder.Batch(vectors, bytes, similarity, buildParams)),
+          bytes,
+          provider,
+          buildParams,
+          queryParams,
+          ramBuffer.map(buffer -> "_ramBuffer:" + buffer.toBytes()).orElse(""));
+    }
+
+    /**
+     * Adds the train vectors with ids in [first, last), which become searchable after the next
+     * refresh. May be called concurrently with any method.
+     */
+    public void add(int first, int last) throws IOException {
+      var batch = this.batches.acquire();
+      try {
+        for (int start = first; start < last; start += BATCH_SIZE) {
+          this.writer.addDocuments(batch.fill(start, Math.min(last, start + BATCH_SIZE)));
+        }
+      } finally {
+        this.batches.release(batch);
+      }
+    }
+
+    /** Makes the documents added so far searchable, waiting for any refresh already running. */
+    public void refresh() throws IOException {
+      this.searcherManager.maybeRefreshBlocking();
+    }
+
+    /**
+     * Queries the k nearest neighbors of the vector among the documents searchable as of the last
+     * refresh, clearing the results and then filling them in order of decreasing similarity.
+     */
+    public void query(float[] vector, int k, QueryResults results) throws IOException {
+      var numCandidates = LuceneIndex.Querier.numCandidates(this.queryParams);
+      var searcher = this.searcherManager.acquire();
+      try {
+        var scoreDocs =
+            searcher.search(
+                    LuceneIndex.Querier.knnQuery(this.bytes, vector, numCandidates, null),
+                    numCandidates)
+                .scoreDocs;
+        var leaves = searcher.getIndexReader().leaves();
+
+        results.clear();
+        for (int i = 0; i < Math.min(k, scoreDocs.length); i++) {
+          var result = scoreDocs[i];
+          var leaf = leaves.get(ReaderUtil.subIndex(result.doc, leaves));
+          var ids = leaf.reader().getNumericDocValues(ID_FIELD);
+          Preconditions.checkState(
+              ids.advanceExact(result.doc - leaf.docBase), "document %s has no id", result.doc);
+          results.add((int) ids.longValue(), result.score);
+        }
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    /** Returns the number of segments searchable as of the last refresh. */
+    public int segments() throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return searcher.getIndexReader().leaves().size();
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    @Override
+    public String description() {
+      return String.format(
+              "lucene_%s_%s_%s",
+              provider.description,
+              LuceneIndex.Builder.buildParamString(buildParams),
+              LuceneIndex.Querier.queryParamString(queryParams))
+          + this.settings;
+    }
+
+    @Override
+    public void close() throws Exception {
+      this.searcherManager.close();
+      // The index is thrown away, so don't spend time committing it or finishing merges.
+      this.writer.rollback();
+      this.directory.close();
+      if (this.searchExecutor != null) {
+        this.searchExecutor.shutdown();
+      }
+      FileUtils.deleteDirectory(this.path.toFile());
+    }
+  }
+
+  /**
+   * Returns the name of the directory the index with the given parameters is built in, relative to
+   * the dataset's indexes directory.
+   */
+  public static String indexDirectory(Index.Builder.Parameters parameters) {
+    var provider = Provider.parse(parameters.type());
+    var buildParams = parseBuildPrams(provider, parameters.buildParameters());
+    return LuceneIndex.Builder.buildDescription(provider, buildParams);
+  }
+
+  /**
+   * Merges the built index in the dataset's indexes directory down to at most maxSegments segments,
+   * returning the number of segments it has afterwards. Merged segments are written with the
+   * index's own format, using all of its build threads.
+   */
+  public static int forceMerge(
+      Path indexesPath, Index.Builder.Parameters parameters, int maxSegments) throws IOException {
+    Preconditions.checkArgument(maxSegments > 0, "maxSegments must be positive");
+    var path = indexesPath.resolve(indexDirectory(parameters));
+    Preconditions.checkArgument(path.toFile().exists(), "index does not exist at %s", path);
+
+    var buildParams =
+        parseBuildPrams(Provider.parse(parameters.type()), parameters.buildParameters());
+    try (var directory = new MMapDirectory(path)) {
+      try (var writer =
+          new IndexWriter(
+              directory,
+              new IndexWriterConfig()
+                  .setOpenMode(IndexWriterConfig.OpenMode.APPEND)
+                  .setCodec(codec(buildParams, true, UnaryOperator.identity()))
+                  .setUseCompoundFile(false)
+                  .setMergePolicy(new TieredMergePolicy())
+                  .setMergeScheduler(new SerialMergeScheduler()))) {
+        writer.forceMerge(maxSegments);
+        writer.commit();
+      }
+      return SegmentInfos.readLatestCommit(directory).size();
+    }
+  }
+
+  /**
+   * Returns the codec writing segments with the build parameters' vector format, wrapped by wrap.
+   * Vamana indexes that aren't force merged build each flushed segment with a single thread, unless
+   * merging.
+   */
+  private static Codec codec(
+      BuildParameters buildParams, boolean merging, UnaryOperator<KnnVectorsFormat> wrap) {
+    return switch (buildParams) {
+      case HnswBuildParameters hnswParams -> new Lucene99Codec() {
+        @Override
+        public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+          return wrap.apply(
+              new Lucene99HnswVectorsFormat(
+                  hnswParams.maxConn,
+                  hnswParams.beamWidth,
+                  hnswParams.scalarQuantization ? new Lucene99ScalarQuantizedVectorsFormat() : null,
+                  hnswParams.numThreads,
+                  hnswParams.numThreads == 1
+                      ? null
+                      : Executors.newFixedThreadPool(hnswParams.numThreads)));
+        }
       };
+      case HnswBytesBuildParameters hnswParams -> new Lucene99Codec() {
+        @Override
+        public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+          return wrap.apply(
+              new Lucene99HnswVectorsFormat(
+                  hnswParams.maxConn,
+                  hnswParams.beamWidth,
+                  null,
+                  hnswParams.numThreads,
+                  hnswParams.numThreads == 1
+                      ? null
+                      : Executors.newFixedThreadPool(hnswParams.numThreads)));
+        }
+      };
+      case VamanaBuildParameters vamanaParams -> {
+        var threads = vamanaParams.forceMerge || merging ? vamanaParams.numThreads : 1;
+        yield new Lucene99Codec() {
+          @Override
+          public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+            return wrap.apply(
+                new VectorSandboxVamanaVectorsFormat(
+                    vamanaParams.maxConn,
+                    vamanaParams.beamWidth,
+                    vamanaParams.alpha,
+                    vamanaParams.pqFactor,
+                    vamanaParams.inGraphVectors,
+                    vamanaParams.scalarQuantization
+                        ? new VectorSandboxScalarQuantizedVectorsFormat()
+                        : null,
+                    threads,
+                    threads == 1 ? null : Executors.newFixedThreadPool(threads)));
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * MergeAllPolicy merges nothing until shouldMerge is set, and then merges every segment into one.
+   */
+  private static final class MergeAllPolicy extends MergePolicy {
+    private final AtomicBoolean shouldMerge;
+
+    MergeAllPolicy(AtomicBoolean shouldMerge) {
+      this.shouldMerge = shouldMerge;
+    }
+
+    @Override
+    public MergeSpecification findMerges(
+        MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext) {
+      return mergeAll(segmentInfos);
+    }
+
+    @Override
+    public MergeSpecification findForcedMerges(
+        SegmentInfos segmentInfos,
+        int maxSegmentCount,
+        Map<SegmentCommitInfo, Boolean> segmentsToMerge,
+        MergeContext mergeContext) {
+      return mergeAll(segmentInfos);
+    }
+
+    @Override
+    public MergeSpecification findForcedDeletesMerges(
+        SegmentInfos segmentInfos, MergeContext mergeContext) {
+      return null;
+    }
+
+    private MergeSpecification mergeAll(SegmentInfos segmentInfos) {
+      if (!this.shouldMerge.get()) {
+        LOGGER.debug("shouldMerge is false, skipping merge");
+        return null;
+      }
+
+      var infos = segmentInfos.asList();
+      if (infos.size() == 1) {
+        LOGGER.debug("only one segment, skipping merge");
+        return null;
+      }
+
+      LOGGER.debug("merging {} segments", infos.size());
+      var spec = new MergeSpecification();
+      spec.add(new OneMerge(infos));
+      return spec;
     }
   }
 
@@ -479,6 +1270,8 @@ public final class LuceneIndex {
       Provider provider, Map<String, String> parameters) {
     return switch (provider) {
       case HNSW -> Records.fromMap(parameters, HnswBuildParameters.class, "build parameters");
+      case HNSW_BYTES -> Records.fromMap(
+          parameters, HnswBytesBuildParameters.class, "build parameters");
       case SANDBOX_VAMANA -> Records.fromMap(
           parameters, VamanaBuildParameters.class, "build parameters");
     };
@@ -488,8 +1281,44 @@ public final class LuceneIndex {
       Provider provider, Map<String, String> parameters) {
     return switch (provider) {
       case HNSW -> Records.fromMap(parameters, HnswQueryParameters.class, "query parameters");
+      case HNSW_BYTES -> Records.fromMap(
+          parameters, HnswBytesQueryParameters.class, "query parameters");
       case SANDBOX_VAMANA -> Records.fromMap(
           parameters, VamanaQueryParameters.class, "query parameters");
     };
   }
+
+  /** Returns the quantized vectors to index or query, if the index holds byte vectors. */
+  private static ByteVectors byteVectors(
+      Path indexesPath, MMapRandomAccessVectorValues vectors, BuildParameters buildParams)
+      throws IOException {
+    return switch (buildParams) {
+      case HnswBytesBuildParameters params -> ByteVectors.loadOrCreate(
+          indexesPath, vectors, ByteVectors.Encoding.parse(params.encoding));
+      case HnswBuildParameters params -> null;
+      case VamanaBuildParameters params -> null;
+    };
+  }
+
+  /**
+   * Returns the similarity the index compares vectors with. Binary vectors are -1 or 1 in every
+   * dimension, so they are compared by dot product, which orders them by hamming distance.
+   */
+  private static VectorSimilarityFunction similarity(
+      SimilarityFunction similarityFunction, BuildParameters buildParams) {
+    if (buildParams instanceof HnswBytesBuildParameters params
+        && ByteVectors.Encoding.parse(params.encoding) == ByteVectors.Encoding.BINARY) {
+      return VectorSimilarityFunction.DOT_PRODUCT;
+    }
+
+    return floatSimilarity(similarityFunction);
+  }
+
+  private static VectorSimilarityFunction floatSimilarity(SimilarityFunction similarityFunction) {
+    return switch (similarityFunction) {
+      case COSINE -> VectorSimilarityFunction.COSINE;
+      case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
+      case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
+    };
+  }
 }
@@ -0,0 +1,176 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.Merge;
+import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.codecs.KnnFieldVectorsWriter;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.KnnVectorsReader;
+import org.apache.lucene.codecs.KnnVectorsWriter;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Sorter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MergeRecorder records the cost of each merge an IndexWriter runs: how long it took, the size of
+ * the segments merged and produced, and how much of it was spent merging vectors, which for graph
+ * formats means rebuilding the graph.
+ *
+ * <p>Merges are timed by the merge scheduler it creates, and vector merging by wrapping the vector
+ * format. Both run on the thread doing the merge, so the vector time is attributed to the merge
+ * through a thread local.
+ */
+final class MergeRecorder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MergeRecorder.class);
+
+  private final List<Merge> merges = new ArrayList<>();
+  // The nanoseconds spent merging vectors by the merge running on this thread, if any.
+  private final ThreadLocal<long[]> vectorNanos = new ThreadLocal<>();
+
+  /** Returns the merges recorded so far, in the order they finished. */
+  synchronized List<Merge> merges() {
+    return List.copyOf(this.merges);
+  }
+
+  /**
+   * Returns a scheduler that runs merges either one at a time on the thread that triggered them,
+   * like SerialMergeScheduler, or on background threads like ConcurrentMergeScheduler.
+   */
+  MergeScheduler scheduler(boolean concurrent) {
+    if (concurrent) {
+      return new ConcurrentMergeScheduler() {
+        @Override
+        protected void doMerge(MergeSource mergeSource, OneMerge merge) throws IOException {
+          record(mergeSource, merge);
+        }
+      };
+    }
+
+    return new MergeScheduler() {
+      @Override
+      public synchronized void merge(MergeSource mergeSource, MergeTrigger trigger)
+          throws IOException {
+        for (var merge = mergeSource.getNextMerge();
+            merge != null;
+            merge = mergeSource.getNextMerge()) {
+          record(mergeSource, merge);
+        }
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  /** Returns a format that writes with the given one, timing how long it spends merging. */
+  KnnVectorsFormat wrap(KnnVectorsFormat format) {
+    // Segments record the format's name to read them with, so it must be the wrapped format's.
+    return new KnnVectorsFormat(format.getName()) {
+      @Override
+      public KnnVectorsWriter fieldsWriter(SegmentWriteState state) throws IOException {
+        return new TimedWriter(format.fieldsWriter(state));
+      }
+
+      @Override
+      public KnnVectorsReader fieldsReader(SegmentReadState state) throws IOException {
+        return format.fieldsReader(state);
+      }
+
+      @Override
+      public int getMaxDimensions(String fieldName) {
+        return format.getMaxDimensions(fieldName);
+      }
+    };
+  }
+
+  private void record(MergeScheduler.MergeSource mergeSource, OneMerge merge) throws IOException {
+    var vectors = new long[1];
+    this.vectorNanos.set(vectors);
+    var start = System.nanoTime();
+    try {
+      mergeSource.merge(merge);
+    } finally {
+      this.vectorNanos.remove();
+    }
+    var duration = Duration.ofNanos(System.nanoTime() - start);
+
+    if (merge.isAborted() || merge.getMergeInfo() == null) {
+      return;
+    }
+
+    var recorded =
+        new Merge(
+            merge.segments.size(),
+            merge.totalNumDocs(),
+            Bytes.ofBytes(merge.totalBytesSize()),
+            Bytes.ofBytes(merge.getMergeInfo().sizeInBytes()),
+            duration,
+            Duration.ofNanos(vectors[0]));
+    LOGGER.info(
+        "merged {} segments of {} documents ({} into {}) in {}, {} merging vectors",
+        recorded.segments(),
+        recorded.documents(),
+        recorded.inputSize(),
+        recorded.outputSize(),
+        recorded.duration(),
+        recorded.vectorsDuration());
+    synchronized (this) {
+      this.merges.add(recorded);
+    }
+  }
+
+  private final class TimedWriter extends KnnVectorsWriter {
+    private final KnnVectorsWriter delegate;
+
+    TimedWriter(KnnVectorsWriter delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public KnnFieldVectorsWriter<?> addField(FieldInfo fieldInfo) throws IOException {
+      return this.delegate.addField(fieldInfo);
+    }
+
+    @Override
+    public void flush(int maxDoc, Sorter.DocMap sortMap) throws IOException {
+      this.delegate.flush(maxDoc, sortMap);
+    }
+
+    @Override
+    public void mergeOneField(FieldInfo fieldInfo, MergeState mergeState) throws IOException {
+      var start = System.nanoTime();
+      this.delegate.mergeOneField(fieldInfo, mergeState);
+      var nanos = vectorNanos.get();
+      if (nanos != null) {
+        nanos[0] += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public void finish() throws IOException {
+      this.delegate.finish();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return this.delegate.ramBytesUsed();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.delegate.close();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * QueryResults is a reusable buffer of query results, holding the ids and scores of the results in
+ * primitive arrays so that filling it does not allocate.
+ *
+ * <p>Results are held in the order they were added, which is the order the index returned them in.
+ * A QueryResults is not thread safe, callers are expected to keep one per querying thread.
+ */
+public final class QueryResults {
+
+  private final int[] ids;
+  private final float[] scores;
+  private int size = 0;
+
+  public QueryResults(int capacity) {
+    this.ids = new int[capacity];
+    this.scores = new float[capacity];
+  }
+
+  public void clear() {
+    this.size = 0;
+  }
+
+  public void add(int id, float score) {
+    Preconditions.checkState(this.size < this.ids.length, "query results are full");
+    this.ids[this.size] = id;
+    this.scores[this.size] = score;
+    this.size++;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public int capacity() {
+    return this.ids.length;
+  }
+
+  public int id(int i) {
+    Preconditions.checkElementIndex(i, this.size);
+    return this.ids[i];
+  }
+
+  public float score(int i) {
+    Preconditions.checkElementIndex(i, this.size);
+    return this.scores[i];
+  }
+}
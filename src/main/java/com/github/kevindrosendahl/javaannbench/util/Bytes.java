@@ -2,6 +2,7 @@ package com.github.kevindrosendahl.javaannbench.util;
 
 import com.google.common.base.Preconditions;
 import java.util.Objects;
+import java.util.regex.Pattern;
 
 /**
  * Bytes represents a byte-based amount of data, and provides utilities to convert between different
@@ -32,6 +33,7 @@ public class Bytes implements Comparable<Bytes> {
   private static final BinaryFactor KIBI_FACTOR = new BinaryFactor(10);
   private static final BinaryFactor MEBI_FACTOR = new BinaryFactor(20);
   private static final BinaryFactor GIBI_FACTOR = new BinaryFactor(30);
+  private static final Pattern PATTERN = Pattern.compile("(\\d+)\\s*(B|KiB|MiB|GiB)?");
 
   private final long bytes;
 
@@ -60,6 +62,30 @@ public class Bytes implements Comparable<Bytes> {
     return new Bytes(gibibytes, GIBI_FACTOR);
   }
 
+  /**
+   * Parses an amount of data written as a number of bytes, optionally followed by one of the units
+   * B, KiB, MiB, or GiB, e.g. "512MiB".
+   */
+  public static Bytes parse(String description) {
+    var matcher = PATTERN.matcher(description.trim());
+    Preconditions.checkArgument(
+        matcher.matches(), "could not parse %s as an amount of bytes", description);
+
+    var amount = Long.parseLong(matcher.group(1));
+    var unit = matcher.group(2);
+    if (unit == null) {
+      return ofBytes(amount);
+    }
+
+    return switch (unit) {
+      case "B" -> ofBytes(amount);
+      case "KiB" -> ofKibi(amount);
+      case "MiB" -> ofMebi(amount);
+      case "GiB" -> ofGibi(amount);
+      default -> throw new AssertionError();
+    };
+  }
+
   /** Returns a new Bytes object, which bytes size is the summation of current and given Bytes. */
   public Bytes add(Bytes addend) {
     return new Bytes(this.bytes + addend.bytes);
@@ -0,0 +1,41 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+
+/**
+ * LatencyRecorder records latencies in nanoseconds into a histogram per recording thread, so that
+ * concurrent recorders never contend with each other. The per-thread histograms are merged when the
+ * results are read.
+ *
+ * <p>Latencies larger than an hour are clamped to an hour.
+ */
+public class LatencyRecorder {
+
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final PerThread<Histogram> histograms = new PerThread<>(LatencyRecorder::newHistogram);
+
+  public void record(long nanos) {
+    var histogram = this.histograms.acquire();
+    histogram.recordValue(Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+    this.histograms.release(histogram);
+  }
+
+  /**
+   * Merges the latencies recorded by all threads into a single histogram.
+   *
+   * <p>Should only be called once recording threads have finished, otherwise in-flight recordings
+   * may be missed.
+   */
+  public Histogram merged() {
+    var merged = newHistogram();
+    this.histograms.all().forEach(merged::add);
+    return merged;
+  }
+
+  private static Histogram newHistogram() {
+    return new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+  }
+}
@@ -0,0 +1,119 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * LatencyTimeSeries records latencies in nanoseconds and samples them once a second, so that
+ * throughput and latency can be seen changing over the course of a run (e.g. while caches warm)
+ * rather than only averaged over it.
+ *
+ * <p>Each sample is attributed to the current phase, and its second is relative to the start of
+ * that phase. Latencies larger than an hour are clamped to an hour.
+ */
+public final class LatencyTimeSeries implements AutoCloseable {
+
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private record Sample(
+      String phase,
+      long second,
+      long intervalNanos,
+      long count,
+      double mean,
+      long p50,
+      long p90,
+      long p99,
+      long max) {}
+
+  private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+  private final List<Sample> samples = new ArrayList<>();
+  private final ScheduledExecutorService sampler;
+
+  private Histogram interval = null;
+  private String phase;
+  private long intervalStartNanos;
+  private long second = 0;
+
+  private LatencyTimeSeries(String phase) {
+    this.phase = phase;
+    this.intervalStartNanos = System.nanoTime();
+    this.sampler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> Thread.ofPlatform().name("latency-sampler").daemon().unstarted(runnable));
+    this.sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+  }
+
+  public static LatencyTimeSeries start(String phase) {
+    return new LatencyTimeSeries(phase);
+  }
+
+  public void record(long nanos) {
+    this.recorder.recordValue(Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+  }
+
+  /**
+   * Ends the current phase, attributing latencies recorded so far to it, and starts the next one.
+   */
+  public synchronized void phase(String phase) {
+    sample();
+    this.phase = phase;
+    this.second = 0;
+  }
+
+  @Override
+  public void close() {
+    this.sampler.shutdownNow();
+    sample();
+  }
+
+  /** Writes the samples as CSV, one row per second of each phase. Latencies are in nanoseconds. */
+  public synchronized void write(Path path) throws IOException {
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      printer.printRecord("phase", "second", "queries", "qps", "mean", "p50", "p90", "p99", "max");
+      for (var sample : this.samples) {
+        printer.printRecord(
+            sample.phase,
+            sample.second,
+            sample.count,
+            sample.count / (sample.intervalNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+            sample.mean,
+            sample.p50,
+            sample.p90,
+            sample.p99,
+            sample.max);
+      }
+    }
+  }
+
+  private synchronized void sample() {
+    var now = System.nanoTime();
+    this.interval = this.recorder.getIntervalHistogram(this.interval);
+    if (now > this.intervalStartNanos) {
+      this.samples.add(
+          new Sample(
+              this.phase,
+              this.second++,
+              now - this.intervalStartNanos,
+              this.interval.getTotalCount(),
+              this.interval.getMean(),
+              this.interval.getValueAtPercentile(50),
+              this.interval.getValueAtPercentile(90),
+              this.interval.getValueAtPercentile(99),
+              this.interval.getMaxValue()));
+    }
+    this.intervalStartNanos = now;
+  }
+}
@@ -13,6 +13,8 @@ public class MMapRandomAccessVectorValues implements RandomAccessVectorValues<fl
   private final MemorySegment segment;
   private final int size;
   private final int dimension;
+  // Non-null if vectorValue(int) returns a shared buffer, see shared().
+  private final float[] buffer;
 
   public MMapRandomAccessVectorValues(Path path, int size, int dimension) throws IOException {
     try (var channel = FileChannel.open(path)) {
@@ -21,6 +23,25 @@ public class MMapRandomAccessVectorValues implements RandomAccessVectorValues<fl
     }
     this.size = size;
     this.dimension = dimension;
+    this.buffer = null;
+  }
+
+  private MMapRandomAccessVectorValues(
+      MemorySegment segment, int size, int dimension, float[] buffer) {
+    this.segment = segment;
+    this.size = size;
+    this.dimension = dimension;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Returns a view of the same mapping whose vectorValue(int) copies into a single reused buffer
+   * rather than allocating a new float[] per call. The returned values are only valid until the
+   * next call, and the view must not be shared between threads, use copy() to get one per thread.
+   */
+  public MMapRandomAccessVectorValues shared() {
+    return new MMapRandomAccessVectorValues(
+        this.segment, this.size, this.dimension, new float[this.dimension]);
   }
 
   @Override
@@ -35,30 +56,52 @@ public class MMapRandomAccessVectorValues implements RandomAccessVectorValues<fl
 
   @Override
   public float[] vectorValue(int targetOrd) {
-    if (targetOrd < 0 || targetOrd >= size) {
-      throw new IllegalArgumentException("Invalid ordinal");
-    }
+    float[] result = this.buffer != null ? this.buffer : new float[dimension];
+    vectorValue(targetOrd, result);
+    return result;
+  }
 
-    float[] result = new float[dimension];
-    for (int i = 0; i < dimension; i++) {
-      result[i] =
-          segment.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, (long) targetOrd * dimension + i);
-    }
+  /**
+   * Copies the vector into the caller supplied buffer, which must hold at least dimension floats.
+   */
+  public void vectorValue(int targetOrd, float[] result) {
+    checkOrdinal(targetOrd);
+    MemorySegment.copy(
+        segment,
+        ValueLayout.JAVA_FLOAT_UNALIGNED,
+        (long) targetOrd * dimension * Float.BYTES,
+        result,
+        0,
+        dimension);
+  }
 
-    return result;
+  /**
+   * Returns a read-only view of the vector's bytes in the mapping, without copying. Floats are in
+   * native order.
+   */
+  public MemorySegment vectorSegment(int targetOrd) {
+    checkOrdinal(targetOrd);
+    var vectorBytes = (long) dimension * Float.BYTES;
+    return segment.asSlice(targetOrd * vectorBytes, vectorBytes);
   }
 
   @Override
   public boolean isValueShared() {
-    return false;
+    return this.buffer != null;
   }
 
   @Override
-  public RandomAccessVectorValues<float[]> copy() {
-    return this;
+  public MMapRandomAccessVectorValues copy() {
+    return this.buffer != null ? shared() : this;
   }
 
   public void advise(Madvise.Advice advice) {
     Madvise.advise(this.segment, this.segment.byteSize(), advice);
   }
+
+  private void checkOrdinal(int targetOrd) {
+    if (targetOrd < 0 || targetOrd >= size) {
+      throw new IllegalArgumentException("Invalid ordinal");
+    }
+  }
 }
@@ -0,0 +1,54 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * PerThread hands out a value that is not shared with any concurrently running thread, so that
+ * scratch state can be reused without synchronization.
+ *
+ * <p>Platform threads each get their own value for their lifetime. Virtual threads are typically
+ * created per task, so rather than creating a value per virtual thread they borrow one from a
+ * shared pool, which only grows to the number of concurrently running virtual threads.
+ *
+ * <p>Values must be returned with {@link #release(Object)} once the caller is done with them.
+ */
+public final class PerThread<T> {
+
+  private final Supplier<T> factory;
+  private final Queue<T> all = new ConcurrentLinkedQueue<>();
+  private final Queue<T> free = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<T> platform;
+
+  public PerThread(Supplier<T> factory) {
+    this.factory = factory;
+    this.platform = ThreadLocal.withInitial(this::create);
+  }
+
+  public T acquire() {
+    if (!Thread.currentThread().isVirtual()) {
+      return this.platform.get();
+    }
+
+    var value = this.free.poll();
+    return value != null ? value : create();
+  }
+
+  public void release(T value) {
+    if (Thread.currentThread().isVirtual()) {
+      this.free.add(value);
+    }
+  }
+
+  /** Returns every value created so far. */
+  public Iterable<T> all() {
+    return this.all;
+  }
+
+  private T create() {
+    var value = this.factory.get();
+    this.all.add(value);
+    return value;
+  }
+}
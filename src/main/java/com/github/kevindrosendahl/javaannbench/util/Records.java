@@ -1,30 +1,51 @@
 package com.github.kevindrosendahl.javaannbench.util;
 
 import com.google.common.base.Preconditions;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
 import java.util.Map;
 
 public class Records {
 
+  /**
+   * Makes a record component optional, taking the given value when the parameter isn't specified,
+   * so that adding a parameter doesn't invalidate existing configs.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.RECORD_COMPONENT)
+  public @interface Default {
+    String value();
+  }
+
   @SuppressWarnings("unchecked")
   public static <T> T fromMap(Map<String, String> parameters, Class<T> clazz, String description) {
     var fields = clazz.getRecordComponents();
     Constructor<T> constructor = (Constructor<T>) clazz.getDeclaredConstructors()[0];
-    Preconditions.checkArgument(
-        constructor.getParameterCount() == parameters.size(),
-        "unexpected number of parameters when parsing %s. expected %s, got %s",
-        description,
-        constructor.getParameterCount(),
-        parameters.size());
+    var names = Arrays.stream(fields).map(RecordComponent::getName).toList();
+    for (var name : parameters.keySet()) {
+      Preconditions.checkArgument(
+          names.contains(name),
+          "unexpected parameter %s when parsing %s. expected %s",
+          name,
+          description,
+          names);
+    }
 
     var args = new Object[fields.length];
     for (int i = 0; i < fields.length; i++) {
       var component = fields[i];
 
       var name = component.getName();
-      Preconditions.checkArgument(parameters.containsKey(name), "must specify %s", name);
+      var orElse = component.getAnnotation(Default.class);
+      Preconditions.checkArgument(
+          parameters.containsKey(name) || orElse != null, "must specify %s", name);
 
-      var value = parameters.get(name);
+      var value = parameters.containsKey(name) ? parameters.get(name) : orElse.value();
       var parsed = parse(value, component.getType());
       args[i] = parsed;
     }
@@ -0,0 +1,253 @@
+package com.github.kevindrosendahl.javaannbench.util.iouring;
+
+import com.google.common.base.Preconditions;
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import io.github.jbellis.jvector.disk.ReaderSupplier;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * IoUringReaderSupplier supplies RandomAccessReaders that read a file with io_uring rather than
+ * memory mapping it, so that reads which miss the page cache don't stall on page faults one at a
+ * time.
+ *
+ * <p>Each reader has its own ring and a bounded cache of the pages it has read. Reads are served
+ * from the cache, and misses are read synchronously. {@link Reader#prefetch} reads the pages for
+ * many ranges in a single submission, so callers that know what they will read next can pay for one
+ * I/O round trip instead of one per range.
+ */
+public final class IoUringReaderSupplier implements ReaderSupplier {
+
+  private static final int PAGE_SIZE = 4096;
+
+  private final IoUring.FileFactory files;
+  private final ByteOrder order;
+  private final int ringEntries;
+  private final int cachePages;
+  private final Queue<Reader> readers = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  public IoUringReaderSupplier(Path path, ByteOrder order, int ringEntries, int cachePages) {
+    Preconditions.checkArgument(ringEntries > 0, "ringEntries must be positive");
+    Preconditions.checkArgument(cachePages > 0, "cachePages must be positive");
+    this.files = IoUring.factory(path);
+    this.order = order;
+    this.ringEntries = ringEntries;
+    this.cachePages = cachePages;
+  }
+
+  @Override
+  public Reader get() {
+    Preconditions.checkState(!this.closed.get(), "reader supplier is closed");
+    var reader =
+        new Reader(
+            this.files.create(this.ringEntries), this.order, this.ringEntries, this.cachePages);
+    this.readers.add(reader);
+    return reader;
+  }
+
+  @Override
+  public void close() {
+    // OnDiskGraphIndex closes its supplier, which may then be closed again by its owner. Readers
+    // that were never closed (e.g. ones used to load a graph cache) are closed along with it.
+    if (!this.closed.compareAndSet(false, true)) {
+      return;
+    }
+
+    for (var reader : this.readers) {
+      reader.close();
+    }
+    this.files.close();
+  }
+
+  public static final class Reader implements RandomAccessReader {
+    private final IoUring ring;
+    private final int ringEntries;
+    private final int cachePages;
+    private final Arena arena;
+    private final MemorySegment pages;
+    // Maps a page number in the file to its slot in pages.
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final ValueLayout.OfInt intLayout;
+    private final ValueLayout.OfFloat floatLayout;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private MemorySegment scratch;
+    private long position;
+
+    private Reader(IoUring ring, ByteOrder order, int ringEntries, int cachePages) {
+      this.ring = ring;
+      this.ringEntries = ringEntries;
+      this.cachePages = cachePages;
+      // Readers are handed between virtual threads, so the arena can't be confined.
+      this.arena = Arena.ofShared();
+      this.pages = this.arena.allocate((long) cachePages * PAGE_SIZE, PAGE_SIZE);
+      this.scratch = this.arena.allocate(PAGE_SIZE);
+      this.intLayout = ValueLayout.JAVA_INT_UNALIGNED.withOrder(order);
+      this.floatLayout = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(order);
+    }
+
+    @Override
+    public void seek(long offset) {
+      this.position = offset;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+      var value = read(Integer.BYTES).get(this.intLayout, 0);
+      this.position += Integer.BYTES;
+      return value;
+    }
+
+    @Override
+    public void readFully(byte[] bytes) throws IOException {
+      MemorySegment.copy(read(bytes.length), ValueLayout.JAVA_BYTE, 0, bytes, 0, bytes.length);
+      this.position += bytes.length;
+    }
+
+    @Override
+    public void readFully(float[] floats) throws IOException {
+      var length = (long) floats.length * Float.BYTES;
+      MemorySegment.copy(read(length), this.floatLayout, 0, floats, 0, floats.length);
+      this.position += length;
+    }
+
+    @Override
+    public void read(int[] ints, int offset, int count) throws IOException {
+      var length = (long) count * Integer.BYTES;
+      MemorySegment.copy(read(length), this.intLayout, 0, ints, offset, count);
+      this.position += length;
+    }
+
+    /**
+     * Reads the pages holding the first count ranges of length bytes starting at offsets into the
+     * cache, submitting all of the reads at once. Ranges that don't fit in the cache are skipped.
+     */
+    public void prefetch(long[] offsets, int count, long length) throws IOException {
+      var needed = new ArrayList<Long>();
+      for (int i = 0; i < count; i++) {
+        var first = offsets[i] / PAGE_SIZE;
+        var last = (offsets[i] + length - 1) / PAGE_SIZE;
+        if (needed.size() + last - first + 1 > this.cachePages) {
+          break;
+        }
+
+        for (var page = first; page <= last; page++) {
+          needed.add(page);
+        }
+      }
+
+      load(needed);
+    }
+
+    @Override
+    public void close() {
+      if (!this.closed.compareAndSet(false, true)) {
+        return;
+      }
+
+      this.ring.close();
+      this.arena.close();
+    }
+
+    /**
+     * Returns a segment holding the length bytes at the current position. The segment is only valid
+     * until the next read.
+     */
+    private MemorySegment read(long length) throws IOException {
+      var first = this.position / PAGE_SIZE;
+      var last = (this.position + length - 1) / PAGE_SIZE;
+      var pageOffset = this.position % PAGE_SIZE;
+      if (first == last && this.slots.containsKey(first)) {
+        return page(first).asSlice(pageOffset, length);
+      }
+
+      Preconditions.checkArgument(
+          last - first < this.cachePages,
+          "read of %s bytes exceeds the %s page cache",
+          length,
+          this.cachePages);
+
+      var needed = new ArrayList<Long>();
+      for (var page = first; page <= last; page++) {
+        needed.add(page);
+      }
+      load(needed);
+
+      if (first == last) {
+        return page(first).asSlice(pageOffset, length);
+      }
+
+      if (this.scratch.byteSize() < length) {
+        this.scratch = this.arena.allocate(length);
+      }
+
+      long copied = 0;
+      for (var page = first; page <= last; page++) {
+        var start = page == first ? pageOffset : 0;
+        var bytes = Math.min(PAGE_SIZE - start, length - copied);
+        MemorySegment.copy(page(page), start, this.scratch, copied, bytes);
+        copied += bytes;
+      }
+      return this.scratch;
+    }
+
+    private MemorySegment page(long page) {
+      return this.pages.asSlice((long) this.slots.get(page) * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /** Reads any of the pages that aren't cached, evicting the whole cache if they don't fit. */
+    private void load(List<Long> needed) throws IOException {
+      var missing =
+          needed.stream().distinct().filter(page -> !this.slots.containsKey(page)).toList();
+      if (missing.isEmpty()) {
+        return;
+      }
+
+      if (this.slots.size() + missing.size() > this.cachePages) {
+        this.slots.clear();
+        missing = needed.stream().distinct().toList();
+      }
+
+      var futures = new ArrayList<CompletableFuture<Void>>(missing.size());
+      for (int i = 0; i < missing.size(); i++) {
+        var page = missing.get(i);
+        var slot = this.slots.size();
+        this.slots.put(page, slot);
+        futures.add(
+            this.ring.prepare(
+                this.pages.asSlice((long) slot * PAGE_SIZE, PAGE_SIZE),
+                PAGE_SIZE,
+                page * PAGE_SIZE));
+
+        // The ring only has room for ringEntries submissions at once.
+        if ((i + 1) % this.ringEntries == 0 || i == missing.size() - 1) {
+          this.ring.submit();
+          this.ring.awaitAll();
+        }
+      }
+
+      for (var future : futures) {
+        try {
+          future.join();
+        } catch (CompletionException e) {
+          // Don't serve whatever was left in the pages' slots.
+          this.slots.clear();
+          throw new IOException("failed reading page", e.getCause());
+        }
+      }
+    }
+  }
+}